@@ -0,0 +1,124 @@
+package net.bytten.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.bytten.comicviewer.CompactArchive;
+import net.bytten.xkcdviewer.XkcdArchiveScanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Parsing the archive page, as XkcdComicProvider.fetchArchive does once the
+ * page has been downloaded, against how it used to (legacyRegexParse). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveParseBenchmark {
+
+    // As fetchArchive used to match each line
+    private static final Pattern archiveItemPattern = Pattern.compile(
+            // group(1): comic number;   group(2): date;   group(3): title
+            "\\s*<a href=\"/(\\d+)/\" title=\"(\\d+-\\d+-\\d+)\">([^<]+)</a><br/>\\s*");
+
+    /* Stands in for the app's ArchiveItem, which needs Android */
+    public static class LegacyItem {
+        public String comicId, title;
+    }
+
+    private byte[] page;
+    private XkcdArchiveScanner scanner;
+
+    /* Pages the scanner has to find the same links in as the old pattern */
+    private static final String[] TRICKY_PAGES = {
+        // A link not followed by <br/>, right before one that is
+        "<a href=\"/1/\" title=\"2006-1-1\">A</a><a href=\"/2/\" " +
+            "title=\"2006-1-2\">B</a><br/>\n",
+        // A title cut short by another tag
+        "<a href=\"/3/\" title=\"2006-1-3\">C<a href=\"/4/\" " +
+            "title=\"2006-1-4\">D</a><br/>\n",
+        // Near misses
+        "<a href=\"/5/\" title=\"2006-1-5\"></a><br/>" +
+            "<a href=\"/x/\" title=\"2006-1-6\">E</a><br/>" +
+            "<a href=\"/7/\" title=\"2006-1\">F</a><br/>" +
+            "<a href=\"/8/\" title=\"2006-1-8\">G</a><br>\n",
+        // Two on a line, and non-ASCII
+        "<a href=\"/9/\" title=\"2006-1-9\">H\u00e9</a><br/>" +
+            "<a href=\"/10/\" title=\"2006-1-10\">\u2603</a><br/>\n",
+    };
+
+    @Setup
+    public void setUp() throws Exception {
+        page = Fixtures.read(Fixtures.ARCHIVE_PAGE);
+        scanner = new XkcdArchiveScanner();
+        checkSameAsLegacy(page);
+        for (String tricky: TRICKY_PAGES)
+            checkSameAsLegacy(tricky.getBytes("UTF-8"));
+    }
+
+    /* Throws if the scanner and the old pattern find different links */
+    private void checkSameAsLegacy(byte[] html) throws Exception {
+        byte[] saved = page;
+        page = html;
+        try {
+            CompactArchive archive = scanArchivePage();
+            List<LegacyItem> legacy = legacyRegexParse();
+            boolean same = archive.size() == legacy.size();
+            for (int row = 0; same && row < archive.size(); ++row) {
+                LegacyItem item = legacy.get(row);
+                same = item.comicId.equals(archive.getId(row)) &&
+                    item.title.equals(item.comicId + " - " +
+                            archive.getTitle(row));
+            }
+            if (!same)
+                throw new IllegalStateException("Scanner found " +
+                        archive.size() + " links where the old pattern " +
+                        "found " + legacy.size() + " in:\n" +
+                        new String(html, "UTF-8"));
+        } finally {
+            page = saved;
+        }
+    }
+
+    @Benchmark
+    public CompactArchive scanArchivePage() throws Exception {
+        CompactArchive.Builder archive = new CompactArchive.Builder();
+        scanner.scan(new ByteArrayInputStream(page), archive);
+        return archive.build();
+    }
+
+    @Benchmark
+    public List<LegacyItem> legacyRegexParse() throws Exception {
+        List<LegacyItem> archiveItems = new ArrayList<LegacyItem>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(page), "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            Matcher m = archiveItemPattern.matcher(line);
+            while (m.find()) {
+                LegacyItem item = new LegacyItem();
+                item.comicId = m.group(1);
+                item.title = item.comicId + " - " + m.group(3);
+                archiveItems.add(item);
+            }
+        }
+        return archiveItems;
+    }
+}
@@ -0,0 +1,63 @@
+package net.bytten.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.bytten.comicviewer.CompactArchive;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Marking which archive rows are bookmarked from the set of bookmarked
+ * numbers, as ArchiveData does after loading the archive, and then checking
+ * each row as the archive list does. The database query that produces the
+ * set needs Android, so isn't covered. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookmarkBenchmark {
+
+    @Param({"10", "500"})
+    public int bookmarks;
+
+    private CompactArchive archive;
+    private BitSet numbers;
+
+    @Setup
+    public void setUp() throws Exception {
+        archive = Fixtures.readArchive();
+        numbers = new BitSet();
+        Random random = new Random(42);
+        while (numbers.cardinality() < bookmarks)
+            numbers.set(1 + random.nextInt(archive.size()));
+    }
+
+    @Benchmark
+    public CompactArchive markBookmarks() {
+        archive.setBookmarked(numbers);
+        return archive;
+    }
+
+    @Benchmark
+    public int checkEveryRow() {
+        int count = 0;
+        for (int row = 0; row < archive.size(); ++row) {
+            if (archive.isBookmarked(row))
+                ++count;
+        }
+        return count;
+    }
+}
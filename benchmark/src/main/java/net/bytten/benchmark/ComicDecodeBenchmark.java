@@ -0,0 +1,91 @@
+package net.bytten.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import net.bytten.xkcdviewer.XkcdComicDecoder;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* Decoding info.0.json, as XkcdComicProvider.fetchComicInfo does, both
+ * straight from the network and while keeping a copy for the store, against
+ * how it used to (legacyDecode). Compare allocation with the GC profiler:
+ *
+ *     ./gradlew :benchmark:jmh -PjmhArgs="-prof gc ComicDecode"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComicDecodeBenchmark {
+
+    @Param({"comic-short.json", "comic-long.json", "comic-unicode.json"})
+    public String sample;
+
+    private byte[] json;
+    private XkcdComicDecoder decoder;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = Fixtures.read(sample);
+        decoder = new XkcdComicDecoder();
+    }
+
+    @Benchmark
+    public XkcdComicDecoder decode() throws Exception {
+        decoder.decode(new ByteArrayInputStream(json), null);
+        return decoder;
+    }
+
+    @Benchmark
+    public XkcdComicDecoder decodeAndCopy() throws Exception {
+        ByteArrayOutputStream copy = new ByteArrayOutputStream(2048);
+        decoder.decode(new ByteArrayInputStream(json), copy);
+        return decoder;
+    }
+
+    /* The old fetchComicInfo: read line by line into a String (as
+     * Utility.blockingReadUri did), parse it with org.json, log the keys, and
+     * fix up the alt text by re-encoding it through ISO-8859-1 */
+    @Benchmark
+    public void legacyDecode(Blackhole bh) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(json), "UTF-8"));
+        StringBuffer sb = new StringBuffer();
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line);
+            sb.append('\n');
+        }
+        String text = sb.toString();
+
+        JSONObject obj = (JSONObject)new JSONTokener(text).nextValue();
+        bh.consume(obj.names().toString());
+        bh.consume(obj.getString("img"));
+        byte [] encodedAlt = obj.getString("alt").getBytes("ISO-8859-1");
+        bh.consume(new String(encodedAlt, "UTF-8"));
+        bh.consume(obj.getInt("num"));
+        bh.consume(obj.getString("title"));
+        if (obj.has("link") && obj.getString("link").length() > 0)
+            bh.consume(obj.getString("link"));
+    }
+}
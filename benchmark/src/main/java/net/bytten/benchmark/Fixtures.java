@@ -0,0 +1,43 @@
+package net.bytten.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.bytten.comicviewer.CompactArchive;
+import net.bytten.xkcdviewer.XkcdArchiveScanner;
+
+/* The checked-in samples the benchmarks run over, from
+ * src/main/resources/fixtures, so results don't depend on the network.
+ *
+ * archive.html is recorded from xkcd.com with
+ * ./gradlew :benchmark:recordArchive. */
+public class Fixtures {
+
+    public static final String ARCHIVE_PAGE = "archive.html";
+
+    public static byte[] read(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null)
+            throw new IOException("No fixture named " + name);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                bytes.write(buffer, 0, count);
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /* The archive in the archive page fixture */
+    public static CompactArchive readArchive() throws Exception {
+        CompactArchive.Builder archive = new CompactArchive.Builder();
+        new XkcdArchiveScanner().scan(
+                new ByteArrayInputStream(read(ARCHIVE_PAGE)), archive);
+        return archive.build();
+    }
+}
@@ -0,0 +1,270 @@
+package net.bytten.benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.bytten.comicviewer.CompactArchive;
+import net.bytten.comicviewer.ComicDataStore;
+import net.bytten.comicviewer.DiskCache;
+import net.bytten.comicviewer.HttpClient;
+import net.bytten.comicviewer.MemoryCache;
+import net.bytten.comicviewer.ResponseStore;
+import net.bytten.comicviewer.SingleFlight;
+import net.bytten.comicviewer.Stats;
+import net.bytten.comicviewer.TitleIndex;
+import net.bytten.xkcdviewer.XkcdClient;
+import net.bytten.xkcdviewer.XkcdComic;
+
+/* Drives the core engine with many simulated readers at once against a
+ * StubServer, and reports throughput and latency percentiles for what they
+ * do. The readers share one engine (client, comic store, memory cache and
+ * image cache) as the app's activities do, so contention between them shows.
+ *
+ * Each reader starts at the latest comic, then over and over either pages
+ * back or forward, jumps to a random comic, goes back to one it read
+ * recently, checks for the latest or searches the archive by title. Reading
+ * a comic means fetching its data and then its image.
+ *
+ * Options: --readers N (16), --seconds N (20), --latency MS (20),
+ *          --think MS (0), --cache-mb N (20), --server-threads N (32) */
+public class LoadRunner {
+
+    static final int READ = 0, LATEST = 1, SEARCH = 2;
+    static final String[] OP_NAMES = { "read", "latest", "search" };
+    private static final String[] QUERIES = {
+        "time", "the", "machine", "s", "love", "computer", "1000"
+    };
+    // How many recently read comics a reader may go back to
+    private static final int HISTORY = 8;
+
+    private int readers = 16, seconds = 20, latencyMs = 20, thinkMs = 0,
+                cacheMb = 20, serverThreads = 32;
+
+    private XkcdClient client;
+    private DiskCache images;
+    private final MemoryCache<String, XkcdComic> comics =
+        new MemoryCache<String, XkcdComic>(16);
+    private final MemoryCache<String, TitleIndex> index =
+        new MemoryCache<String, TitleIndex>(1);
+    private final AtomicLong errors = new AtomicLong();
+
+    /* Latencies in nanoseconds of one reader's operations of one kind */
+    static class Samples {
+        long[] values = new long[1024];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; ++i)
+                add(other.values[i]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadRunner runner = new LoadRunner();
+        runner.parseArgs(args);
+        runner.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i+1]);
+            if (args[i].equals("--readers")) readers = value;
+            else if (args[i].equals("--seconds")) seconds = value;
+            else if (args[i].equals("--latency")) latencyMs = value;
+            else if (args[i].equals("--think")) thinkMs = value;
+            else if (args[i].equals("--cache-mb")) cacheMb = value;
+            else if (args[i].equals("--server-threads")) serverThreads = value;
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+    }
+
+    private void run() throws Exception {
+        StubServer server = new StubServer(latencyMs);
+        String baseUrl = server.start(serverThreads);
+        File cacheDir = File.createTempFile("loadtest", "");
+        cacheDir.delete();
+        try {
+            HttpClient http = HttpClient.getInstance();
+            client = new XkcdClient(baseUrl, baseUrl + "/random/comic", http);
+            client.setComicDataStore(new ComicDataStore() {
+                private final Map<Integer, byte[]> data =
+                    new ConcurrentHashMap<Integer, byte[]>();
+                public byte[] getComicData(int id) {
+                    return data.get(id);
+                }
+                public void putComicData(int id, byte[] bytes) {
+                    data.put(id, bytes);
+                }
+            });
+            client.setResponseStore(new ResponseStore(
+                    new File(cacheDir, "responses")));
+            images = new DiskCache(new File(cacheDir, "images"),
+                    cacheMb * 1024L * 1024L, http);
+
+            System.out.printf(Locale.US, "%d readers for %d s, stub latency "
+                    + "%d ms, think time %d ms, %d comics%n", readers, seconds,
+                    latencyMs, thinkMs, server.getArchive().size());
+            report(runReaders(server.getLatestId()), server);
+        } finally {
+            server.stop();
+            delete(cacheDir);
+        }
+    }
+
+    private Samples[][] runReaders(final int latest) throws Exception {
+        final Samples[][] samples = new Samples[readers][];
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(readers);
+        for (int r = 0; r < readers; ++r) {
+            final int reader = r;
+            samples[r] = new Samples[OP_NAMES.length];
+            for (int op = 0; op < OP_NAMES.length; ++op)
+                samples[r][op] = new Samples();
+            Thread thread = new Thread("Reader " + r) {
+                public void run() {
+                    try {
+                        read(new Random(reader), latest, deadline,
+                                samples[reader]);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+        done.await();
+        return samples;
+    }
+
+    private void read(Random random, int latest, long deadline,
+            Samples[] samples)
+    {
+        int[] history = new int[HISTORY];
+        int historySize = 0, current = latest, direction = -1;
+        while (System.nanoTime() < deadline) {
+            int choice = random.nextInt(100), op = READ, next;
+            if (choice < 50) {
+                // Mostly keep going the same way
+                if (random.nextInt(5) == 0) direction = -direction;
+                next = current + direction;
+            } else if (choice < 75) {
+                next = 1 + random.nextInt(latest);
+            } else if (choice < 90 && historySize > 0) {
+                next = history[random.nextInt(Math.min(historySize, HISTORY))];
+            } else if (choice < 95) {
+                op = LATEST;
+                next = latest;
+            } else {
+                op = SEARCH;
+                next = current;
+            }
+            if (next < 1 || next > latest || next == 404) {
+                direction = -direction;
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try {
+                if (op == READ)
+                    readComic(next);
+                else if (op == LATEST)
+                    client.fetchLatestComic();
+                else
+                    search(QUERIES[random.nextInt(QUERIES.length)]);
+                samples[op].add(System.nanoTime() - start);
+                if (op == READ) {
+                    current = next;
+                    history[historySize++ % HISTORY] = next;
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+
+            if (thinkMs > 0) {
+                try {
+                    Thread.sleep(thinkMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void readComic(int num) throws Exception {
+        final String url = client.comicDataUrl(num);
+        XkcdComic comic = comics.get(url, new SingleFlight.Call<XkcdComic>() {
+            public XkcdComic call() throws Exception {
+                return client.fetchComic(url);
+            }
+        });
+        comics.put(url, comic);
+        images.get(comic.img);
+    }
+
+    private int[] search(String query) throws Exception {
+        TitleIndex titles = index.get("archive",
+                new SingleFlight.Call<TitleIndex>() {
+            public TitleIndex call() throws Exception {
+                CompactArchive archive = client.fetchArchive();
+                return new TitleIndex(archive);
+            }
+        });
+        index.put("archive", titles);
+        return titles.search(query);
+    }
+
+    private void report(Samples[][] samples, StubServer server) {
+        System.out.printf(Locale.US, "%n%-8s %8s %8s %8s %8s %8s %8s %8s%n",
+                "op (ms)", "count", "ops/s", "p50", "p90", "p99", "p99.9",
+                "max");
+        long total = 0;
+        for (int op = 0; op < OP_NAMES.length; ++op) {
+            Samples all = new Samples();
+            for (Samples[] reader: samples)
+                all.addAll(reader[op]);
+            total += all.size;
+            if (all.size == 0) {
+                System.out.printf(Locale.US, "%-8s %8d%n", OP_NAMES[op], 0);
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(all.values, all.size);
+            Arrays.sort(sorted);
+            System.out.printf(Locale.US,
+                    "%-8s %8d %8.1f %8.1f %8.1f %8.1f %8.1f %8.1f%n",
+                    OP_NAMES[op], sorted.length,
+                    sorted.length / (double)seconds,
+                    millis(sorted, 50), millis(sorted, 90), millis(sorted, 99),
+                    millis(sorted, 99.9), sorted[sorted.length-1] / 1e6);
+        }
+        System.out.printf(Locale.US, "%ntotal %.1f ops/s, %d errors, %d "
+                + "requests to the server%n%n", total / (double)seconds,
+                errors.get(), server.getRequests());
+        System.out.print(Stats.dump());
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f: files)
+                delete(f);
+        }
+        file.delete();
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        int i = (int)Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,207 @@
+package net.bytten.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.bytten.comicviewer.CompactArchive;
+
+/* A local stand-in for xkcd.com, serving the comics in the archive fixture:
+ *
+ *     /archive/           the archive page
+ *     /info.0.json        the latest comic
+ *     /N/info.0.json      comic N (there is no #404)
+ *     /comics/N.png       comic N's image, of 20 to 150 KB of noise
+ *
+ * Every response is delayed by about the given latency, with one in twenty
+ * taking five times as long, so that the client sees a tail. Pages and comic
+ * data come with an ETag, and a request with a matching If-None-Match gets
+ * 304 Not Modified, as from xkcd.com. */
+public class StubServer {
+
+    private static final Pattern comicPattern = Pattern.compile(
+            "/([0-9]+)/info\\.0\\.json");
+    private static final Pattern imagePattern = Pattern.compile(
+            "/comics/([0-9]+)\\.png");
+    private static final int MIN_IMAGE = 20*1024, MAX_IMAGE = 150*1024;
+
+    private final CompactArchive archive;
+    private final byte[] archivePage;
+    private final int latencyMs;
+    // Images are prefixes of this, so they don't all have to be held
+    private final byte[] noise = new byte[MAX_IMAGE];
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger(),
+                                maxInFlight = new AtomicInteger();
+
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    private String baseUrl = null;
+
+    public StubServer(int latencyMs) throws Exception {
+        this.latencyMs = latencyMs;
+        archivePage = Fixtures.read(Fixtures.ARCHIVE_PAGE);
+        archive = Fixtures.readArchive();
+        new Random(2017).nextBytes(noise);
+    }
+
+    public CompactArchive getArchive() {
+        return archive;
+    }
+
+    public int getLatestId() {
+        return archive.getNumericId(0);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /* The most requests that have been waiting out their latency at once.
+     * (Not counting the time after the response is sent, by when the client
+     * may have sent another.) */
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /* Returns the base URL to use in place of http://xkcd.com */
+    public String start(int threads) throws IOException {
+        // Otherwise Nagle's algorithm adds ~40ms to every response body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getByName("127.0.0.1"), 0), 256);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        return baseUrl;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int now = inFlight.incrementAndGet(), max;
+        while (now > (max = maxInFlight.get()) &&
+                !maxInFlight.compareAndSet(max, now)) {}
+        try {
+            delay();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+        String path = exchange.getRequestURI().getPath();
+        Matcher m;
+        if (path.equals("/archive/")) {
+            send(exchange, "text/html; charset=utf-8", archivePage);
+        } else if (path.equals("/info.0.json")) {
+            sendComic(exchange, 0);
+        } else if ((m = comicPattern.matcher(path)).matches()) {
+            int row = archive.findRow(m.group(1));
+            if (row == -1)
+                notFound(exchange);
+            else
+                sendComic(exchange, row);
+        } else if ((m = imagePattern.matcher(path)).matches()) {
+            if (archive.findRow(m.group(1)) == -1) {
+                notFound(exchange);
+                return;
+            }
+            int n = Integer.parseInt(m.group(1));
+            int length = MIN_IMAGE + (n * 7919) % (MAX_IMAGE - MIN_IMAGE);
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(noise, 0, length);
+            out.close();
+        } else {
+            notFound(exchange);
+        }
+    }
+
+    private void delay() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int ms = latencyMs / 2 + random.nextInt(latencyMs + 1);
+        if (random.nextInt(20) == 0)
+            ms *= 5;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendComic(HttpExchange exchange, int row) throws IOException {
+        int num = archive.getNumericId(row), date = archive.getDate(row);
+        String title = json(archive.getTitle(row));
+        String body = "{\"month\": \"" + date / 100 % 100 +
+            "\", \"num\": " + num +
+            ", \"link\": \"\", \"year\": \"" + date / 10000 +
+            "\", \"news\": \"\", \"safe_title\": \"" + title +
+            "\", \"transcript\": \"\", \"alt\": \"Alt text of " + title +
+            "\", \"img\": \"" + baseUrl + "/comics/" + num +
+            ".png\", \"title\": \"" + title +
+            "\", \"day\": \"" + date % 100 + "\"}";
+        send(exchange, "application/json", body.getBytes("UTF-8"));
+    }
+
+    private static String json(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void send(HttpExchange exchange, String type, byte[] body)
+        throws IOException
+    {
+        String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", type);
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept != null && accept.contains("gzip")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(body);
+            gzip.close();
+            body = bytes.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static void notFound(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(404, -1);
+    }
+}
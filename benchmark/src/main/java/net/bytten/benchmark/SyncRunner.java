@@ -0,0 +1,203 @@
+package net.bytten.benchmark;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.bytten.comicviewer.ComicSync;
+import net.bytten.comicviewer.DiskCache;
+import net.bytten.comicviewer.HttpClient;
+import net.bytten.xkcdviewer.XkcdClient;
+
+/* Runs ComicSync, as the app's "Download All" does, against a StubServer and
+ * checks that:
+ *
+ * - it never has more than its concurrency of requests in flight
+ * - when interrupted part way, it keeps a checkpoint, and the next sync
+ *   carries on from it without fetching again what was synced
+ * - the next sync then finishes with every comic's image in the cache
+ * - into a cache too small for them all, it doesn't checkpoint past, or
+ *   report as synced, comics whose images were evicted
+ *
+ * Only the latest comics are synced, to keep it quick. Exits with status 1
+ * if a check fails.
+ *
+ * Options: --comics N (300), --concurrency N (3), --latency MS (5) */
+public class SyncRunner {
+
+    private int comics = 300, concurrency = 3, latencyMs = 5;
+
+    private StubServer server;
+    private XkcdClient client;
+    private DiskCache images;
+    // IDs whose data was fetched in the current sync
+    private final BitSet fetched = new BitSet();
+    private int saved = 0;
+    private boolean failed = false;
+
+    public static void main(String[] args) throws Exception {
+        SyncRunner runner = new SyncRunner();
+        runner.parseArgs(args);
+        System.exit(runner.run() ? 0 : 1);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i+1]);
+            if (args[i].equals("--comics")) comics = value;
+            else if (args[i].equals("--concurrency")) concurrency = value;
+            else if (args[i].equals("--latency")) latencyMs = value;
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+    }
+
+    private boolean run() throws Exception {
+        server = new StubServer(latencyMs);
+        // Plenty of server threads, so that only the sync limits concurrency
+        String baseUrl = server.start(concurrency * 4);
+        File cacheDir = File.createTempFile("synctest", "");
+        cacheDir.delete();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                concurrency * 2);
+        try {
+            client = new XkcdClient(baseUrl, baseUrl + "/random/comic",
+                    HttpClient.getInstance());
+            images = new DiskCache(cacheDir, Long.MAX_VALUE,
+                    HttpClient.getInstance());
+            int latest = server.getLatestId(), first = latest - comics + 1;
+            if (concurrency > HttpClient.MAX_CONNECTIONS_PER_HOST) {
+                System.out.printf(Locale.US, "HttpClient allows only %d "
+                        + "requests to a host at once%n",
+                        HttpClient.MAX_CONNECTIONS_PER_HOST);
+            }
+            System.out.printf(Locale.US, "Syncing comics %d to %d, %d at "
+                    + "a time, stub latency %d ms%n", first, latest,
+                    concurrency, latencyMs);
+
+            // Interrupted a third of the way through
+            int interruptedAt = interruptedSync(first, executor, comics / 3);
+            check(interruptedAt >= first && interruptedAt < latest,
+                    "interrupted sync saved checkpoint " + interruptedAt);
+
+            fetched.clear();
+            long start = System.nanoTime();
+            int failures = newSync(executor).run(first, quiet());
+            System.out.printf(Locale.US, "Resumed sync took %.1f s%n",
+                    (System.nanoTime() - start) / 1e9);
+            check(failures == 0, "resumed sync had " + failures +
+                    " failures");
+            check(fetched.nextSetBit(0) > interruptedAt, "resumed sync " +
+                    "started at " + fetched.nextSetBit(0) + ", after " +
+                    "checkpoint " + interruptedAt);
+            check(saved == latest, "resumed sync saved checkpoint " + saved);
+            int missing = 0;
+            for (int id = first; id <= latest; ++id) {
+                if (server.getArchive().findRow(Integer.toString(id)) != -1 &&
+                        images.getCached(imageUrl(baseUrl, id)) == null)
+                    ++missing;
+            }
+            check(missing == 0, missing + " images missing from the cache");
+
+            // Again from scratch, into a cache with room for a few images
+            File smallDir = new File(cacheDir, "small");
+            images = new DiskCache(smallDir, 1024 * 1024,
+                    HttpClient.getInstance());
+            saved = 0;
+            failures = newSync(executor).run(first, quiet());
+            check(failures > 0, "sync into a small cache had " + failures +
+                    " failures");
+            check(saved < first + 10, "sync into a small cache saved " +
+                    "checkpoint " + saved);
+
+            check(server.getMaxInFlight() <= concurrency, "at most " +
+                    server.getMaxInFlight() + " requests in flight");
+            int possible = Math.min(concurrency,
+                    HttpClient.MAX_CONNECTIONS_PER_HOST);
+            check(server.getMaxInFlight() == possible, "sync reached " +
+                    possible + " requests in flight");
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+            delete(cacheDir);
+        }
+        System.out.println(failed ? "FAILED" : "OK");
+        return !failed;
+    }
+
+    /* Runs a sync until done comics have been synced, then interrupts it,
+     * and returns the checkpoint it saved */
+    private int interruptedSync(final int first, ExecutorService executor,
+            final int done) throws Exception
+    {
+        final ComicSync sync = newSync(executor);
+        final Thread thread = new Thread("Interrupted sync") {
+            public void run() {
+                try {
+                    sync.run(first, new ComicSync.Listener() {
+                        public void onProgress(int n, int total,
+                                double comicsPerSecond, long imageBytes) {
+                            if (n == done)
+                                interrupt();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // Expected
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        return saved;
+    }
+
+    private ComicSync newSync(ExecutorService executor) {
+        return new ComicSync(new ComicSync.Source() {
+            public int fetchLatestId() throws Exception {
+                return client.fetchLatestComic().num;
+            }
+            public String fetchImageUrl(int id) throws Exception {
+                synchronized (fetched) {
+                    fetched.set(id);
+                }
+                return client.fetchComic(id).img;
+            }
+        }, images, new ComicSync.Checkpoint() {
+            public synchronized int load() {
+                return saved;
+            }
+            public synchronized void save(int syncedThrough) {
+                saved = syncedThrough;
+            }
+        }, executor, concurrency);
+    }
+
+    private static ComicSync.Listener quiet() {
+        return new ComicSync.Listener() {
+            public void onProgress(int done, int total,
+                    double comicsPerSecond, long imageBytes) {
+            }
+        };
+    }
+
+    private static String imageUrl(String baseUrl, int id) {
+        return baseUrl + "/comics/" + id + ".png";
+    }
+
+    private void check(boolean ok, String what) {
+        System.out.println((ok ? "ok:   " : "FAIL: ") + what);
+        if (!ok) failed = true;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f: files)
+                delete(f);
+        }
+        file.delete();
+    }
+}
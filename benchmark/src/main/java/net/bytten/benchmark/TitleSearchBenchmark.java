@@ -0,0 +1,62 @@
+package net.bytten.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.bytten.comicviewer.CompactArchive;
+import net.bytten.comicviewer.TitleIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Searching the archive by title, as ArchiveActivity's search does, and
+ * building the index it searches on first use. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TitleSearchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Archive {
+        CompactArchive archive;
+
+        @Setup
+        public void setUp() throws Exception {
+            archive = Fixtures.readArchive();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Index {
+        // A common prefix, a two word query, an ID and a miss
+        @Param({"s", "time machine", "1000", "zzz"})
+        public String query;
+
+        TitleIndex index;
+
+        @Setup
+        public void setUp(Archive archive) {
+            index = new TitleIndex(archive.archive);
+        }
+    }
+
+    @Benchmark
+    public int[] search(Index index) {
+        return index.index.search(index.query);
+    }
+
+    @Benchmark
+    public TitleIndex buildIndex(Archive archive) {
+        return new TitleIndex(archive.archive);
+    }
+}
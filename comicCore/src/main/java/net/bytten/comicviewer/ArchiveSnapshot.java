@@ -0,0 +1,88 @@
+package net.bytten.comicviewer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/* Compact binary copy of an archive on disk, so that it can be shown at
+ * startup without waiting for the network.
+ *
+ * Format: the magic number, a flags int, the item count, then for each item
+ * its ID (an int if FLAG_NUMERIC_IDS is set, otherwise modified UTF-8), its
+ * date as a yyyymmdd int and its title in modified UTF-8. */
+public class ArchiveSnapshot {
+
+    // Version 1 ("CVA1") had the ID at the start of every title
+    private static final int MAGIC = 0x43564132; // "CVA2"
+    private static final int FLAG_NUMERIC_IDS = 1;
+
+    /* Returns null if there is no usable snapshot in file. */
+    public static CompactArchive read(File file) throws IOException {
+        if (!file.exists())
+            return null;
+
+        // Small enough to read in one go, which is faster than streaming
+        byte[] bytes = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int off = 0, count;
+            while (off < bytes.length &&
+                    (count = fis.read(bytes, off, bytes.length - off)) != -1)
+                off += count;
+        } finally {
+            fis.close();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 12 || in.readInt() != MAGIC)
+            return null;
+        boolean numericIds = (in.readInt() & FLAG_NUMERIC_IDS) != 0;
+        int count = in.readInt();
+        CompactArchive.Builder builder = new CompactArchive.Builder();
+        for (int i = 0; i < count; ++i) {
+            String id = numericIds ? Integer.toString(in.readInt())
+                    : in.readUTF();
+            int date = in.readInt();
+            builder.add(id, date, in.readUTF());
+        }
+        return builder.build();
+    }
+
+    /* Replaces the snapshot atomically, so a crash can't leave half of one. */
+    public static void write(File file, CompactArchive archive)
+        throws IOException
+    {
+        boolean numericIds = archive.hasNumericIds();
+
+        // Unique per thread so concurrent writers don't clobber each other
+        File partial = new File(file.getPath() + "." +
+                Thread.currentThread().getId() + ".part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(partial)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numericIds ? FLAG_NUMERIC_IDS : 0);
+            out.writeInt(archive.size());
+            for (int row = 0; row < archive.size(); ++row) {
+                if (numericIds)
+                    out.writeInt(archive.getNumericId(row));
+                else
+                    out.writeUTF(archive.getId(row));
+                out.writeInt(archive.getDate(row));
+                out.writeUTF(archive.getTitle(row));
+            }
+            out.close();
+            out = null;
+            if (!partial.renameTo(file))
+                throw new IOException("Couldn't replace archive snapshot");
+        } finally {
+            if (out != null) out.close();
+            partial.delete();
+        }
+    }
+}
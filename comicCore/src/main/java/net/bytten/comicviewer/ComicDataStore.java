@@ -0,0 +1,12 @@
+package net.bytten.comicviewer;
+
+/* Where a provider may keep the raw data of comics it has fetched, keyed by
+ * numeric comic ID, and look them up instead of going back to the network.
+ * Published comics don't change. */
+public interface ComicDataStore {
+
+    /* Returns null if the comic has never been stored. */
+    public byte[] getComicData(int id);
+
+    public void putComicData(int id, byte[] data);
+}
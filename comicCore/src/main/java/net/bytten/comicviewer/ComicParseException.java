@@ -0,0 +1,14 @@
+package net.bytten.comicviewer;
+
+import java.io.IOException;
+
+/* Thrown when what the website returned doesn't match the format expected,
+ * as opposed to it not being fetched at all. An IOException, as that's how
+ * it surfaces while reading a response. */
+public class ComicParseException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ComicParseException(String message) {
+        super(message);
+    }
+}
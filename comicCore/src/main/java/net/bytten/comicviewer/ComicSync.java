@@ -0,0 +1,236 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/* Downloads every comic from the first to the latest, metadata and image,
+ * so they can be read offline. Only works for comics whose IDs are numbers.
+ *
+ * Progress is checkpointed as the highest ID below which everything has been
+ * fetched, so an interrupted sync picks up where it left off. A comic whose
+ * image has since been evicted from the cache (because the cache is too small
+ * for them all) doesn't count as fetched, and is a failure. At most
+ * concurrency comics are fetched at once, each by a worker run on the given
+ * Executor.
+ *
+ * Doesn't depend on Android, so it can be run against a stub server on a
+ * plain JVM; OfflineSync runs it in the app. */
+public class ComicSync {
+
+    public interface Source {
+        public int fetchLatestId() throws Exception;
+
+        /* Returns the URL of the comic's image, or null if it has none.
+         * Throws FileNotFoundException if there is no comic with that ID. */
+        public String fetchImageUrl(int id) throws Exception;
+    }
+
+    /* Where the highest ID below which everything is synced is kept */
+    public interface Checkpoint {
+        /* Returns 0 if there isn't one */
+        public int load();
+
+        public void save(int syncedThrough);
+    }
+
+    public interface Listener {
+        /* Called from worker threads */
+        public void onProgress(int done, int total, double comicsPerSecond,
+                long imageBytes);
+    }
+
+    // Save the checkpoint after this many comics
+    private static final int CHECKPOINT_INTERVAL = 10;
+
+    private final Source source;
+    private final DiskCache images;
+    private final Checkpoint checkpoint;
+    private final Executor executor;
+    private final int concurrency;
+
+    private int latest, start, syncedThrough, next;
+    private BitSet finished;
+    // The image URL of each comic fetched in this run that has one
+    private final Map<Integer, String> imageUrls =
+        new HashMap<Integer, String>();
+    private int total, done, failed;
+    private long imageBytes, startTime;
+    private boolean stopped;
+    private final Set<Thread> workers = new HashSet<Thread>();
+
+    public ComicSync(Source source, DiskCache images, Checkpoint checkpoint,
+            Executor executor, int concurrency)
+    {
+        this.source = source;
+        this.images = images;
+        this.checkpoint = checkpoint;
+        this.executor = executor;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /* Do NOT call in a UI thread, or in a thread of the executor. Blocks
+     * until every comic from first on has been tried, and returns how many
+     * couldn't be fetched. Interrupt the thread to stop early; progress so
+     * far is kept. */
+    public int run(int first, final Listener listener) throws Exception {
+        int latestId = source.fetchLatestId();
+        synchronized (this) {
+            latest = latestId;
+            syncedThrough = Math.max(first - 1, checkpoint.load());
+            start = next = syncedThrough + 1;
+            finished = new BitSet();
+            imageUrls.clear();
+            total = Math.max(0, latest - syncedThrough);
+            done = failed = 0;
+            imageBytes = 0;
+            startTime = System.currentTimeMillis();
+            stopped = false;
+        }
+
+        final CountDownLatch running = new CountDownLatch(concurrency);
+        try {
+            for (int i = 0; i < concurrency; ++i) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            work(listener);
+                        } finally {
+                            running.countDown();
+                        }
+                    }
+                });
+            }
+            running.await();
+        } finally {
+            // Only does anything if we were interrupted
+            stop();
+            saveCheckpoint();
+        }
+        synchronized (this) {
+            for (String image: imageUrls.values()) {
+                if (!images.contains(image))
+                    ++failed;
+            }
+            return failed;
+        }
+    }
+
+    /* Stops the workers, and waits for those that have started to finish
+     * what they're doing, so that nothing is still being fetched once run()
+     * returns. Those that haven't started never will. */
+    private synchronized void stop() {
+        stopped = true;
+        for (Thread t: workers)
+            t.interrupt();
+        boolean interrupted = false;
+        while (!workers.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /* Syncs comics one at a time until there are none left */
+    private void work(Listener listener) {
+        synchronized (this) {
+            if (stopped) return;
+            workers.add(Thread.currentThread());
+        }
+        try {
+            while (true) {
+                int id;
+                synchronized (this) {
+                    if (stopped || next > latest)
+                        return;
+                    id = next++;
+                }
+                if (!sync(id, listener))
+                    return;
+            }
+        } finally {
+            synchronized (this) {
+                workers.remove(Thread.currentThread());
+                notifyAll();
+            }
+            // Don't leave stop()'s interrupt for the executor's next task
+            Thread.interrupted();
+        }
+    }
+
+    /* Returns false if the sync has been stopped */
+    private boolean sync(int id, Listener listener) {
+        boolean ok = true;
+        long bytes = 0;
+        String image = null;
+        try {
+            image = source.fetchImageUrl(id);
+            if (image != null && image.length() > 0) {
+                File file = images.get(image);
+                bytes = file.length();
+            } else {
+                image = null;
+            }
+        } catch (FileNotFoundException e) {
+            // A gap in the numbering (such as xkcd's #404). Nothing to fetch.
+        } catch (InterruptedException e) {
+            return false;
+        } catch (Exception e) {
+            synchronized (this) {
+                if (stopped) return false;
+            }
+            e.printStackTrace();
+            ok = false;
+        }
+
+        int doneNow;
+        double rate;
+        long bytesNow;
+        synchronized (this) {
+            ++done;
+            imageBytes += bytes;
+            if (ok) {
+                if (image != null)
+                    imageUrls.put(id, image);
+                finished.set(id);
+                while (finished.get(syncedThrough + 1))
+                    ++syncedThrough;
+            } else {
+                // Leave a hole so it's tried again next time
+                ++failed;
+            }
+            if (done % CHECKPOINT_INTERVAL == 0)
+                saveCheckpoint();
+
+            doneNow = done;
+            long elapsed = System.currentTimeMillis() - startTime;
+            rate = elapsed == 0 ? 0 : done * 1000.0 / elapsed;
+            bytesNow = imageBytes;
+        }
+        listener.onProgress(doneNow, total, rate, bytesNow);
+        return true;
+    }
+
+    /* Saves the checkpoint only as far as the first comic fetched in this
+     * run whose image is no longer cached */
+    private synchronized void saveCheckpoint() {
+        int through = start - 1;
+        while (through < syncedThrough) {
+            String image = imageUrls.get(through + 1);
+            if (image != null && !images.contains(image))
+                break;
+            ++through;
+        }
+        checkpoint.save(through);
+    }
+}
@@ -0,0 +1,274 @@
+package net.bytten.comicviewer;
+
+import java.util.BitSet;
+
+/* An archive kept as a few parallel arrays rather than an object per comic,
+ * which takes a fraction of the memory and no time to garbage collect.
+ * Rows are in archive order, newest first.
+ *
+ * IDs are kept as ints when every ID is a number, otherwise as Strings. The
+ * titles are stored end to end in one char array. */
+public class CompactArchive {
+
+    private final int size;
+    // Exactly one of these is non-null
+    private final int[] ids;
+    private final String[] stringIds;
+    /* Publication dates as yyyymmdd, or 0 if unknown */
+    private final int[] dates;
+    private final char[] titles;
+    // The title of row i is titles[titleStarts[i]] to titles[titleStarts[i+1]]
+    private final int[] titleStarts;
+    private final BitSet bookmarked;
+
+    private CompactArchive(int size, int[] ids, String[] stringIds,
+            int[] dates, char[] titles, int[] titleStarts, BitSet bookmarked)
+    {
+        this.size = size;
+        this.ids = ids;
+        this.stringIds = stringIds;
+        this.dates = dates;
+        this.titles = titles;
+        this.titleStarts = titleStarts;
+        this.bookmarked = bookmarked;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean hasNumericIds() {
+        return ids != null;
+    }
+
+    /* Only valid if hasNumericIds() */
+    public int getNumericId(int row) {
+        return ids[row];
+    }
+
+    public String getId(int row) {
+        return ids != null ? Integer.toString(ids[row]) : stringIds[row];
+    }
+
+    public int getDate(int row) {
+        return dates[row];
+    }
+
+    public String getTitle(int row) {
+        return new String(titles, titleStarts[row], getTitleLength(row));
+    }
+
+    /* The array holding every title. Use with getTitleStart and
+     * getTitleLength to read a title without making a String of it. */
+    public char[] getTitleChars() {
+        return titles;
+    }
+
+    public int getTitleStart(int row) {
+        return titleStarts[row];
+    }
+
+    public int getTitleLength(int row) {
+        return titleStarts[row+1] - titleStarts[row];
+    }
+
+    public synchronized boolean isBookmarked(int row) {
+        return bookmarked.get(row);
+    }
+
+    public synchronized void setBookmarked(int row, boolean value) {
+        bookmarked.set(row, value);
+    }
+
+    /* Marks the rows whose IDs are in numbers as bookmarked, and the rest as
+     * not. Only valid if hasNumericIds() */
+    public synchronized void setBookmarked(BitSet numbers) {
+        bookmarked.clear();
+        for (int row = 0; row < size; ++row) {
+            if (numbers.get(ids[row]))
+                bookmarked.set(row);
+        }
+    }
+
+    /* Returns -1 if there's no comic with that ID. */
+    public int findRow(String id) {
+        if (ids == null) {
+            for (int row = 0; row < size; ++row) {
+                if (stringIds[row].equals(id))
+                    return row;
+            }
+            return -1;
+        }
+        int n = parseId(id);
+        for (int row = 0; row < size; ++row) {
+            if (ids[row] == n)
+                return row;
+        }
+        return -1;
+    }
+
+    /* The length of the label getLabel makes for a row */
+    public int getLabelLength(int row) {
+        int idLength = ids != null ? digits(ids[row]) : stringIds[row].length();
+        return idLength + 3 + getTitleLength(row);
+    }
+
+    /* Writes "<id> - <title>" for a row into dest, which must have room for
+     * getLabelLength(row) chars. Lets a list show the archive without
+     * making any Strings. */
+    public void getLabel(int row, char[] dest) {
+        int pos;
+        if (ids != null) {
+            int n = ids[row];
+            pos = digits(n);
+            for (int i = pos - 1; i >= 0; --i) {
+                dest[i] = (char)('0' + n % 10);
+                n /= 10;
+            }
+        } else {
+            pos = stringIds[row].length();
+            stringIds[row].getChars(0, pos, dest, 0);
+        }
+        dest[pos++] = ' ';
+        dest[pos++] = '-';
+        dest[pos++] = ' ';
+        System.arraycopy(titles, titleStarts[row], dest, pos,
+                getTitleLength(row));
+    }
+
+    private static int digits(int n) {
+        int count = 1;
+        while (n >= 10) {
+            n /= 10;
+            ++count;
+        }
+        return count;
+    }
+
+    /* Returns -1 unless id is a non-negative number as written by
+     * Integer.toString */
+    static int parseId(String id) {
+        if (id == null || id.length() == 0 || id.length() > 9)
+            return -1;
+        if (id.charAt(0) == '0' && id.length() > 1)
+            return -1;
+        int n = 0;
+        for (int i = 0; i < id.length(); ++i) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    public static class Builder {
+        private int size = 0;
+        private int[] ids = new int[64];
+        private String[] stringIds = null;
+        private int[] dates = new int[64];
+        private char[] titles = new char[1024];
+        private int[] titleStarts = new int[65];
+        private final BitSet bookmarked = new BitSet();
+
+        public Builder add(String id, int date, String title) {
+            int n = parseId(id);
+            if (n == -1 && stringIds == null) {
+                // Not every ID is a number after all
+                stringIds = new String[ids.length];
+                for (int row = 0; row < size; ++row)
+                    stringIds[row] = Integer.toString(ids[row]);
+            }
+            makeRoom(title.length());
+            if (stringIds != null)
+                stringIds[size] = id;
+            else
+                ids[size] = n;
+            dates[size] = date;
+            int start = titleStarts[size];
+            title.getChars(0, title.length(), titles, start);
+            titleStarts[size+1] = start + title.length();
+            ++size;
+            return this;
+        }
+
+        /* Adds a row with a numeric ID, taking the title from
+         * title[start] to title[start+length] */
+        public Builder add(int id, int date, char[] title, int start,
+                int length)
+        {
+            if (stringIds != null || id < 0)
+                return add(Integer.toString(id), date,
+                        new String(title, start, length));
+            makeRoom(length);
+            ids[size] = id;
+            dates[size] = date;
+            int titleStart = titleStarts[size];
+            System.arraycopy(title, start, titles, titleStart, length);
+            titleStarts[size+1] = titleStart + length;
+            ++size;
+            return this;
+        }
+
+        /* Adds all of archive's rows, bookmarks included */
+        public Builder addAll(CompactArchive archive) {
+            int first = size;
+            for (int row = 0; row < archive.size(); ++row) {
+                add(archive.getId(row), archive.getDate(row),
+                        archive.getTitle(row));
+                if (archive.isBookmarked(row))
+                    bookmarked.set(first + row);
+            }
+            return this;
+        }
+
+        private void makeRoom(int titleLength) {
+            if (size == dates.length) {
+                int capacity = size * 2;
+                if (stringIds != null)
+                    stringIds = grow(stringIds, capacity);
+                else
+                    ids = grow(ids, capacity);
+                dates = grow(dates, capacity);
+                titleStarts = grow(titleStarts, capacity + 1);
+            }
+            int needed = titleStarts[size] + titleLength;
+            if (needed > titles.length) {
+                char[] bigger = new char[Math.max(needed, titles.length * 2)];
+                System.arraycopy(titles, 0, bigger, 0, titleStarts[size]);
+                titles = bigger;
+            }
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            int[] bigger = new int[capacity];
+            System.arraycopy(array, 0, bigger, 0, Math.min(array.length, capacity));
+            return bigger;
+        }
+
+        private static String[] grow(String[] array, int capacity) {
+            String[] bigger = new String[capacity];
+            System.arraycopy(array, 0, bigger, 0, Math.min(array.length, capacity));
+            return bigger;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public CompactArchive build() {
+            int[] finalIds = null;
+            String[] finalStringIds = null;
+            if (stringIds != null) {
+                finalStringIds = grow(stringIds, size);
+            } else {
+                finalIds = grow(ids, size);
+            }
+            char[] finalTitles = new char[titleStarts[size]];
+            System.arraycopy(titles, 0, finalTitles, 0, finalTitles.length);
+            return new CompactArchive(size, finalIds, finalStringIds,
+                    grow(dates, size), finalTitles, grow(titleStarts, size + 1),
+                    (BitSet)bookmarked.clone());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Disk cache of downloaded files (in practice, comic images). Files are named
+ * by a hash of their URL and the least recently used ones are deleted once
+ * the total size goes over a limit. */
+public class DiskCache {
+
+    private final File dir;
+    private final HttpClient http;
+    private long maxBytes, totalBytes = 0;
+    private final SingleFlight<String, File> downloads =
+        new SingleFlight<String, File>();
+    // In access order, so the least recently used entry is first
+    private final Map<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private static class Entry {
+        final File file;
+        // What it was counted at in totalBytes
+        final long bytes;
+
+        Entry(File file) {
+            this.file = file;
+            this.bytes = file.length();
+        }
+    }
+
+    public DiskCache(File dir, long maxBytes, HttpClient http) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.http = http;
+        dir.mkdirs();
+
+        /* Rebuild the index from what's on disk. Hits touch the file's
+         * modification time, so sorting by it recovers the LRU order. */
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = a.lastModified(), y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File f: files) {
+            if (f.getName().endsWith(".part")) {
+                // Left over from an interrupted download
+                f.delete();
+                continue;
+            }
+            Entry entry = new Entry(f);
+            entries.put(f.getName(), entry);
+            totalBytes += entry.bytes;
+        }
+        evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /* Returns null if the file at url isn't in the cache. */
+    public File getCached(String url) {
+        File file = lookup(url);
+        if (file != null)
+            Stats.IMAGE_CACHE_HIT.increment();
+        return file;
+    }
+
+    /* Whether the file at url is in the cache. Unlike getCached, doesn't
+     * count as a use of it. */
+    public synchronized boolean contains(String url) {
+        return find(keyFor(url)) != null;
+    }
+
+    private synchronized File lookup(String url) {
+        Entry entry = find(keyFor(url));
+        if (entry == null)
+            return null;
+        entry.file.setLastModified(System.currentTimeMillis());
+        return entry.file;
+    }
+
+    /* Returns null if there's no entry for key, or its file has gone (the
+     * system may delete cache files while we run), in which case the entry
+     * is dropped so the file is downloaded again */
+    private Entry find(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.file.exists()) {
+            entries.remove(key);
+            totalBytes -= entry.bytes;
+            return null;
+        }
+        return entry;
+    }
+
+    /* Downloads the file at url into the cache if it isn't already there. */
+    public File get(final String url) throws IOException, InterruptedException {
+        File file = getCached(url);
+        if (file != null)
+            return file;
+
+        // If another thread is already downloading it, wait for that instead
+        try {
+            return downloads.run(url, new SingleFlight.Call<File>() {
+                public File call() throws Exception {
+                    File file = lookup(url);
+                    return file != null ? file : download(url);
+                }
+            });
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // download doesn't throw anything else
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File download(String url) throws IOException, InterruptedException {
+        String key = keyFor(url);
+        File file = new File(dir, key);
+        Stats.IMAGE_CACHE_MISS.increment();
+        long start = Stats.now();
+        // Only replaces file once it's all there (see HttpClient.saveTo)
+        http.saveTo(new URL(url), file);
+        Stats.IMAGE_DOWNLOAD.stop(start);
+        synchronized (this) {
+            Entry old = entries.remove(key);
+            if (old != null)
+                totalBytes -= old.bytes;
+            Entry entry = new Entry(file);
+            entries.put(key, entry);
+            totalBytes += entry.bytes;
+            Stats.IMAGE_BYTES.add(entry.bytes);
+            evict();
+        }
+        return file;
+    }
+
+    private synchronized void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        // Always keep the most recent entry, however big it is
+        while (totalBytes > maxBytes && entries.size() > 1) {
+            Entry entry = it.next();
+            totalBytes -= entry.bytes;
+            entry.file.delete();
+            it.remove();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    url.getBytes("UTF-8"));
+            char[] key = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; ++i) {
+                key[2*i] = HEX[(digest[i] >> 4) & 0xf];
+                key[2*i+1] = HEX[digest[i] & 0xf];
+            }
+            return new String(key);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
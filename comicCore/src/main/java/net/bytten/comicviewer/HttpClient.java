@@ -0,0 +1,424 @@
+package net.bytten.comicviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/* The one place comic data, archives and images are fetched from. It keeps
+ * connections alive between requests, gives every request a timeout, asks
+ * for gzipped responses, follows a bounded number of redirects and limits
+ * how many requests may be made to one host at once. Each stage of every
+ * request is timed in Stats. Pages that are fetched again and again, such as
+ * the archive, can be revalidated against a ResponseStore instead of being
+ * downloaded every time. */
+public class HttpClient {
+
+    public static final int CONNECT_TIMEOUT = 15*1000, // = 15 seconds
+                            READ_TIMEOUT    = 30*1000; // = 30 seconds
+    public static final int MAX_REDIRECTS = 5;
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+
+    private static HttpClient instance = null;
+    public static synchronized HttpClient getInstance() {
+        if (instance == null) {
+            instance = new HttpClient();
+        }
+        return instance;
+    }
+
+    private final Map<String, Semaphore> hostPermits =
+        new HashMap<String, Semaphore>();
+
+    private HttpClient() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections",
+                Integer.toString(MAX_CONNECTIONS_PER_HOST));
+    }
+
+    /* For platforms whose connection pool is broken, e.g. Android before 2.2
+     * (where closing one connection could corrupt another that was reused).
+     * Connections opened after this are closed after each request. */
+    public static void disableConnectionPooling() {
+        System.setProperty("http.keepAlive", "false");
+    }
+
+    /* A response whose body may be read from getInputStream(). It MUST be
+     * closed so that its connection can go back in the pool and another
+     * request to the same host can be made. */
+    public static class Response {
+        private final URLConnection conn;
+        private Semaphore permit;
+        private InputStream is = null;
+        private MeteredInputStream body = null;
+
+        private Response(URLConnection conn, Semaphore permit) {
+            this.conn = conn;
+            this.permit = permit;
+        }
+
+        public URL getUrl() {
+            return conn.getURL();
+        }
+
+        /* Returns -1 if the response isn't from an HTTP server */
+        public int getStatus() throws IOException {
+            if (conn instanceof HttpURLConnection)
+                return ((HttpURLConnection)conn).getResponseCode();
+            return -1;
+        }
+
+        public String getHeaderField(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        /* Returns null if it isn't known */
+        public String getContentType() {
+            return conn.getContentType();
+        }
+
+        /* Returns 0 if there's no Last-Modified header */
+        public long getLastModified() {
+            return conn.getLastModified();
+        }
+
+        public int getContentLength() {
+            // Length of the compressed body, so meaningless if it's gzipped
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+                return -1;
+            return conn.getContentLength();
+        }
+
+        /* Throws FileNotFoundException if the server says there's nothing
+         * at this URL. */
+        public InputStream getInputStream() throws IOException {
+            if (is == null) {
+                body = new MeteredInputStream(conn.getInputStream());
+                is = body;
+                if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+                    is = new GZIPInputStream(is);
+            }
+            return is;
+        }
+
+        /* Time spent so far blocked reading the body from the network, so
+         * that it can be told apart from the time spent decoding it */
+        public long getReadNanos() {
+            return body == null ? 0 : body.nanos;
+        }
+
+        public void close() {
+            if (body != null) {
+                Stats.HTTP_BODY.record(body.nanos);
+                Stats.HTTP_BYTES.add(body.bytes);
+                body = null;
+            }
+            try {
+                if (is != null) {
+                    is.close();
+                } else if (conn instanceof HttpURLConnection) {
+                    InputStream es = ((HttpURLConnection)conn).getErrorStream();
+                    if (es != null) es.close();
+                }
+            } catch (IOException e) {
+            } finally {
+                if (permit != null) {
+                    permit.release();
+                    permit = null;
+                }
+            }
+        }
+    }
+
+    /* Counts the bytes read through it and the time spent reading them */
+    private static class MeteredInputStream extends FilterInputStream {
+        long bytes = 0, nanos = 0;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = Stats.now();
+            int b = in.read();
+            nanos += Stats.now() - start;
+            if (b != -1) ++bytes;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count)
+            throws IOException
+        {
+            long start = Stats.now();
+            int n = in.read(buffer, offset, count);
+            nanos += Stats.now() - start;
+            if (n > 0) bytes += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = Stats.now();
+            long skipped = in.skip(n);
+            nanos += Stats.now() - start;
+            bytes += skipped;
+            return skipped;
+        }
+    }
+
+    public Response open(URL url) throws IOException, InterruptedException {
+        return open(url, true);
+    }
+
+    public Response open(URL url, boolean followRedirects)
+        throws IOException, InterruptedException
+    {
+        return open(url, followRedirects, null);
+    }
+
+    /* Blocks while too many requests to the url's host are in progress. If
+     * stored isn't null, the server is asked to send the body only if it
+     * has changed since stored was fetched, and otherwise to respond 304 Not
+     * Modified. */
+    public Response open(URL url, boolean followRedirects,
+            ResponseStore.Entry stored)
+        throws IOException, InterruptedException
+    {
+        for (int redirects = 0; ; ++redirects) {
+            Semaphore permit = permitFor(url.getHost());
+            long start = Stats.now();
+            permit.acquire();
+            Stats.HTTP_QUEUE.stop(start);
+            Stats.HTTP_REQUESTS.increment();
+            Response response = null;
+            try {
+                URLConnection conn = url.openConnection();
+                conn.setConnectTimeout(CONNECT_TIMEOUT);
+                conn.setReadTimeout(READ_TIMEOUT);
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+                if (stored != null && stored.etag != null)
+                    conn.setRequestProperty("If-None-Match", stored.etag);
+                if (stored != null && stored.lastModified != 0)
+                    conn.setIfModifiedSince(stored.lastModified);
+                response = new Response(conn, permit);
+                if (!(conn instanceof HttpURLConnection))
+                    return response;
+
+                HttpURLConnection http = (HttpURLConnection)conn;
+                // We follow redirects ourselves to bound them and to change
+                // host permits when the host changes
+                http.setInstanceFollowRedirects(false);
+                start = Stats.now();
+                http.connect();
+                Stats.HTTP_CONNECT.stop(start);
+                start = Stats.now();
+                int status = http.getResponseCode();
+                Stats.HTTP_FIRST_BYTE.stop(start);
+                if (status == -1) {
+                    throw new IOException("A certificate failure occurred. Make sure your device is fully up to date."); // In practice, that seems to be when this HTTP failure occurs
+                }
+                if (!followRedirects || !isRedirect(status))
+                    return response;
+
+                if (redirects >= MAX_REDIRECTS)
+                    throw new IOException("Too many HTTP redirects");
+                String location = http.getHeaderField("Location");
+                if (location == null)
+                    throw new IOException("Invalid redirect");
+                url = new URL(url, location);
+                response.close();
+                response = null;
+            } catch (IOException e) {
+                if (response != null) response.close();
+                else permit.release();
+                throw e;
+            } catch (RuntimeException e) {
+                if (response != null) response.close();
+                else permit.release();
+                throw e;
+            }
+            Interrupts.check();
+        }
+    }
+
+    /* Returns the body of the response from url. If store is given, the
+     * request is conditional on the copy there, which is returned if the
+     * server says it hasn't changed, and a new body replaces it. */
+    public byte[] fetchRevalidated(URL url, ResponseStore store)
+        throws IOException, InterruptedException
+    {
+        String key = url.toString();
+        ResponseStore.Entry stored = store == null ? null : store.get(key);
+        Response response = open(url, true, stored);
+        try {
+            if (stored != null && response.getStatus() ==
+                    HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Stats.HTTP_NOT_MODIFIED.increment();
+                Stats.HTTP_BYTES_SAVED.add(stored.body.length);
+                return stored.body;
+            }
+            InputStream is = response.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+                Interrupts.check();
+            }
+            byte[] bytes = body.toByteArray();
+            String etag = response.getHeaderField("ETag");
+            long lastModified = response.getLastModified();
+            if (store != null && (etag != null || lastModified != 0)) {
+                store.put(key, new ResponseStore.Entry(etag, lastModified,
+                        bytes));
+            }
+            return bytes;
+        } finally {
+            response.close();
+        }
+    }
+
+    /* Told how a download is going, at most once per BUFFER_SIZE bytes */
+    public interface ProgressListener {
+        /* total is -1 if the server didn't say how long the body is */
+        public void onProgress(long bytes, long total);
+    }
+
+    public static final int BUFFER_SIZE = 64*1024; // = 64 KB
+
+    // One per downloading thread, as they are costly to allocate
+    private static final ThreadLocal<ByteBuffer> buffers =
+        new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+        };
+
+    public void saveTo(URL url, File file) throws IOException,
+        InterruptedException
+    {
+        saveTo(url, file, null, null);
+    }
+
+    /* Saves the body of the response from url to file. It's written to a
+     * temporary file beside it, which only replaces file once all of it is
+     * there, so file is never left half written. The body must be as long
+     * as the server said and, if expectedSha1 (in hex) isn't null, have
+     * that SHA-1, or IOException is thrown and file is left alone. */
+    public void saveTo(URL url, File file, String expectedSha1,
+            ProgressListener progress)
+        throws IOException, InterruptedException
+    {
+        File temp = new File(file.getParentFile(), file.getName() + "." +
+                Thread.currentThread().getId() + ".part");
+        FileOutputStream fos = null;
+        Response response = null;
+        boolean saved = false;
+        try {
+            MessageDigest sha1 = null;
+            if (expectedSha1 != null) {
+                try {
+                    sha1 = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            fos = new FileOutputStream(temp);
+            FileChannel out = fos.getChannel();
+            response = open(url);
+            long total = response.getContentLength(), bytes = 0;
+            ReadableByteChannel in =
+                Channels.newChannel(response.getInputStream());
+            ByteBuffer buffer = buffers.get();
+            boolean eof = false;
+            while (!eof) {
+                // Fill the buffer, so that it's written in large pieces
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                bytes += buffer.remaining();
+                if (sha1 != null) {
+                    sha1.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                if (progress != null)
+                    progress.onProgress(bytes, total);
+                Interrupts.check();
+            }
+            fos.close();
+            fos = null;
+
+            if (total >= 0 && bytes != total)
+                throw new IOException("Download was " + bytes + " bytes " +
+                        "long, not " + total);
+            if (sha1 != null && !toHex(sha1.digest()).equalsIgnoreCase(
+                    expectedSha1))
+                throw new IOException("Download doesn't match its checksum");
+            if (!temp.renameTo(file))
+                throw new IOException("Couldn't write to " + file);
+            saved = true;
+        } catch (ClosedByInterruptException e) {
+            // The channel closes itself if the thread is interrupted
+            throw new InterruptedException();
+        } finally {
+            try {
+                if (fos != null) fos.close();
+            } catch (IOException ex) {}
+            if (response != null) response.close();
+            if (!saved) temp.delete();
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[2*i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2*i+1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == HttpURLConnection.HTTP_MOVED_TEMP ||
+            status == HttpURLConnection.HTTP_MOVED_PERM ||
+            status == HttpURLConnection.HTTP_SEE_OTHER ||
+            status == 307;
+    }
+
+    private synchronized Semaphore permitFor(String host) {
+        Semaphore permit = hostPermits.get(host);
+        if (permit == null) {
+            permit = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+            hostPermits.put(host, permit);
+        }
+        return permit;
+    }
+}
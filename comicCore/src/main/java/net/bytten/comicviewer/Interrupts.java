@@ -0,0 +1,46 @@
+package net.bytten.comicviewer;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileLockInterruptionException;
+
+/* How long-running work is cancelled: by interrupting the thread doing it,
+ * which calls check() regularly. Where work has priorities (see the Android
+ * TaskScheduler) a Yielder also lets it give way to more important work. */
+public class Interrupts {
+
+    public interface Yielder {
+        /* Must not block */
+        public void yieldIfBusy();
+    }
+
+    private static volatile Yielder yielder = null;
+
+    public static void setYielder(Yielder y) {
+        yielder = y;
+    }
+
+    /* Throws if the current thread has been interrupted */
+    public static void check() throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        Yielder y = yielder;
+        if (y != null)
+            y.yieldIfBusy();
+    }
+
+    /* Whether e, or anything that caused it, is how blocking I/O or waiting
+     * reports being interrupted */
+    public static boolean isInterruption(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof InterruptedException ||
+                    e instanceof InterruptedIOException ||
+                    e instanceof ClosedByInterruptException ||
+                    e instanceof FileLockInterruptionException)
+                return true;
+            if (e.getCause() == e)
+                break;
+        }
+        return false;
+    }
+}
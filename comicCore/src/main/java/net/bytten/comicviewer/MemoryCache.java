@@ -0,0 +1,45 @@
+package net.bytten.comicviewer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Keeps hold of the most recently used values up to a maximum count, and
+ * makes sure only one thread at a time loads a missing value. */
+public class MemoryCache<K, V> {
+
+    private final int maxEntries;
+    // In access order, so the least recently used entry is first
+    private final Map<K, V> entries;
+    private final SingleFlight<K, V> loads = new SingleFlight<K, V>();
+
+    public MemoryCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<K, V>(maxEntries, 0.75f, true);
+    }
+
+    /* Returns null if key isn't in the cache. */
+    public synchronized V getCached(K key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+        Iterator<V> it = entries.values().iterator();
+        while (entries.size() > maxEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /* Returns the value for key, calling load for it if it isn't in the
+     * cache. If another thread is already loading it, waits for that rather
+     * than loading it again. load's value isn't added to the cache; call put
+     * if it should be. */
+    public V get(K key, SingleFlight.Call<V> load) throws Exception {
+        V value = getCached(key);
+        if (value != null)
+            return value;
+        return loads.run(key, load);
+    }
+}
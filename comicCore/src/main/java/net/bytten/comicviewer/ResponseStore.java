@@ -0,0 +1,111 @@
+package net.bytten.comicviewer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/* The last body fetched from each URL that HttpClient.fetchRevalidated is
+ * used for, with the ETag and Last-Modified the server sent with it, so the
+ * next fetch can ask for it only if it has changed. One file per URL. */
+public class ResponseStore {
+
+    // Bumped if the file format changes, so old files are ignored
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public final String etag;       // null if there was none
+        public final long lastModified; // 0 if there was none
+        public final byte[] body;
+
+        public Entry(String etag, long lastModified, byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+
+    private final File dir;
+
+    public ResponseStore(File dir) {
+        this.dir = dir;
+    }
+
+    private File fileFor(String url) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b: digest)
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            return new File(dir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* Returns null if nothing is stored for url, or it can't be read. */
+    public synchronized Entry get(String url) {
+        File file = fileFor(url);
+        if (!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != VERSION || !in.readUTF().equals(url))
+                return null;
+            String etag = in.readBoolean() ? in.readUTF() : null;
+            long lastModified = in.readLong();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(etag, lastModified, body);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /* Written to a temporary file first, so a reader never sees half of
+     * it. Failures are ignored: the next fetch just isn't conditional. */
+    public synchronized void put(String url, Entry entry) {
+        dir.mkdirs();
+        File file = fileFor(url),
+             temp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            out.writeBoolean(entry.etag != null);
+            if (entry.etag != null)
+                out.writeUTF(entry.etag);
+            out.writeLong(entry.lastModified);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file))
+                temp.delete();
+        } catch (IOException e) {
+            temp.delete();
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {}
+        }
+    }
+}
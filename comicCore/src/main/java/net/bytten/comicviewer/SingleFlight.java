@@ -0,0 +1,82 @@
+package net.bytten.comicviewer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* Makes sure only one call per key is in progress at once. A thread asking
+ * for a key that's already being worked on waits for that call's result
+ * instead of making its own. */
+public class SingleFlight<K, V> {
+
+    public interface Call<V> {
+        public V call() throws Exception;
+    }
+
+    private static class Flight<V> {
+        V value = null;
+        Throwable error = null;
+        // Whether the call failed because its thread was interrupted
+        boolean interrupted = false;
+        boolean done = false;
+    }
+
+    private final Map<K, Flight<V>> flights = new HashMap<K, Flight<V>>();
+
+    public V run(K key, Call<V> call) throws Exception {
+        while (true) {
+            Flight<V> flight;
+            boolean leader = false;
+            synchronized (flights) {
+                flight = flights.get(key);
+                if (flight == null) {
+                    flight = new Flight<V>();
+                    flights.put(key, flight);
+                    leader = true;
+                }
+            }
+
+            if (leader)
+                return lead(key, flight, call);
+
+            synchronized (flight) {
+                while (!flight.done)
+                    flight.wait();
+            }
+            if (flight.interrupted) {
+                // The thread we were waiting on was cancelled, but we weren't,
+                // so try again ourselves
+                Interrupts.check();
+                continue;
+            }
+            if (flight.error instanceof Exception)
+                throw (Exception)flight.error;
+            if (flight.error instanceof Error)
+                throw (Error)flight.error;
+            return flight.value;
+        }
+    }
+
+    private V lead(K key, Flight<V> flight, Call<V> call) throws Exception {
+        try {
+            flight.value = call.call();
+            return flight.value;
+        } catch (Exception e) {
+            flight.error = e;
+            flight.interrupted = Interrupts.isInterruption(e) ||
+                Thread.currentThread().isInterrupted();
+            throw e;
+        } catch (Error e) {
+            flight.error = e;
+            flight.interrupted = Thread.currentThread().isInterrupted();
+            throw e;
+        } finally {
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            synchronized (flight) {
+                flight.done = true;
+                flight.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package net.bytten.comicviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Timings and counts for each stage of loading a comic, kept for the life of
+ * the process and cheap enough to leave on all the time. Recording a timing
+ * takes one uncontended lock; a count, none. DiagnosticsActivity shows them,
+ * and dump() gives the same as text.
+ *
+ * Doesn't depend on Android, so it can be used on a plain JVM. */
+public class Stats {
+
+    // Must be created before the Timers and Counters below register in them
+    private static final List<Timer> timers = new ArrayList<Timer>();
+    private static final List<Counter> counters = new ArrayList<Counter>();
+
+    public static final Timer
+        HTTP_QUEUE         = new Timer("http.queue"),      // Waiting for a host permit
+        HTTP_CONNECT       = new Timer("http.connect"),
+        HTTP_FIRST_BYTE    = new Timer("http.firstByte"),  // Request sent to headers received
+        HTTP_BODY          = new Timer("http.body"),       // Time spent blocked reading the body
+        COMIC_PARSE        = new Timer("comic.parse"),
+        COMIC_BOOKMARK     = new Timer("comic.bookmarkLookup"),
+        COMIC_LOAD         = new Timer("comic.load"),      // Tap to title shown
+        IMAGE_DOWNLOAD     = new Timer("image.download"),
+        IMAGE_DECODE       = new Timer("image.decode"),
+        IMAGE_TILE         = new Timer("image.tile"),      // One tile of a giant comic
+        IMAGE_RENDER       = new Timer("image.render");    // File to image shown
+
+    public static final Counter
+        HTTP_REQUESTS      = new Counter("http.requests"),
+        HTTP_BYTES         = new Counter("http.bytesIn"),  // As sent, i.e. compressed
+        HTTP_NOT_MODIFIED  = new Counter("http.notModified"),
+        HTTP_BYTES_SAVED   = new Counter("http.bytesSaved"), // Served from a ResponseStore on 304
+        COMIC_MEMORY_HIT   = new Counter("comic.memory.hit"),
+        COMIC_MEMORY_MISS  = new Counter("comic.memory.miss"),
+        COMIC_STORE_HIT    = new Counter("comic.store.hit"),
+        COMIC_STORE_MISS   = new Counter("comic.store.miss"),
+        COMIC_LOAD_ERROR   = new Counter("comic.load.error"),
+        IMAGE_CACHE_HIT    = new Counter("image.cache.hit"),
+        IMAGE_CACHE_MISS   = new Counter("image.cache.miss"),
+        IMAGE_BYTES        = new Counter("image.bytes"),
+        BITMAP_CACHE_HIT   = new Counter("bitmap.cache.hit"),
+        BITMAP_CACHE_MISS  = new Counter("bitmap.cache.miss"),
+        BITMAP_REUSED      = new Counter("bitmap.reused"),  // Decoded into an old bitmap
+        GC                 = new Counter("gc.collections");
+
+    static {
+        new GcSentinel();
+    }
+
+    /* Counts garbage collections: each one finalizes the latest sentinel,
+     * which counts it and leaves another for the next. */
+    private static class GcSentinel {
+        @Override
+        protected void finalize() {
+            GC.increment();
+            new GcSentinel();
+        }
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public static class Timer {
+        /* Percentiles are of this many of the latest timings */
+        public static final int RECENT = 128;
+
+        private final String name;
+        private long count = 0, totalNanos = 0, maxNanos = 0;
+        private final long[] recent = new long[RECENT];
+
+        private Timer(String name) {
+            this.name = name;
+            synchronized (timers) {
+                timers.add(this);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            recent[(int)(count % RECENT)] = nanos;
+            ++count;
+            totalNanos += nanos;
+            if (nanos > maxNanos) maxNanos = nanos;
+        }
+
+        /* Records the time since start, which came from now() */
+        public void stop(long start) {
+            record(now() - start);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotalNanos() {
+            return totalNanos;
+        }
+
+        private synchronized void reset() {
+            count = totalNanos = maxNanos = 0;
+        }
+
+        private void dump(StringBuilder sb) {
+            long count, totalNanos, maxNanos;
+            long[] samples;
+            synchronized (this) {
+                count = this.count;
+                totalNanos = this.totalNanos;
+                maxNanos = this.maxNanos;
+                samples = new long[(int)Math.min(count, RECENT)];
+                System.arraycopy(recent, 0, samples, 0, samples.length);
+            }
+            if (count == 0) {
+                sb.append(String.format(Locale.US, "%-22s %6d\n", name, 0));
+                return;
+            }
+            Arrays.sort(samples);
+            sb.append(String.format(Locale.US,
+                    "%-22s %6d %8.1f %8.1f %8.1f %8.1f\n", name, count,
+                    millis(totalNanos / count), millis(percentile(samples, 50)),
+                    millis(percentile(samples, 95)), millis(maxNanos)));
+        }
+    }
+
+    public static class Counter {
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+            synchronized (counters) {
+                counters.add(this);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[(sorted.length - 1) * p / 100];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static void reset() {
+        synchronized (timers) {
+            for (Timer t: timers)
+                t.reset();
+        }
+        synchronized (counters) {
+            for (Counter c: counters)
+                c.value.set(0);
+        }
+    }
+
+    /* A plain text table of every timing and count so far */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-22s %6s %8s %8s %8s %8s\n",
+                "Stage (ms)", "count", "mean", "p50", "p95", "max"));
+        synchronized (timers) {
+            for (Timer t: timers)
+                t.dump(sb);
+        }
+        sb.append(String.format(Locale.US,
+                "(p50 and p95 are of the latest %d)\n\n", Timer.RECENT));
+        synchronized (counters) {
+            for (Counter c: counters)
+                sb.append(String.format(Locale.US, "%-22s %10d\n",
+                        c.getName(), c.get()));
+        }
+
+        long readNanos = HTTP_BODY.getTotalNanos();
+        if (readNanos > 0) {
+            sb.append(String.format(Locale.US,
+                    "\nDownload throughput: %.1f KB/s\n",
+                    HTTP_BYTES.get() / 1024.0 / (readNanos / 1e9)));
+        }
+        long shown = IMAGE_RENDER.getCount();
+        if (shown > 0) {
+            sb.append(String.format(Locale.US,
+                    "Garbage collections per image shown: %.2f\n",
+                    GC.get() / (double)shown));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package net.bytten.comicviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Index of the words in an archive's titles and IDs, built once so that
+ * searching by title doesn't have to look through every title. A query
+ * matches the rows that have, for every word in the query, a word starting
+ * with it. Case is ignored the same way in every locale. */
+public class TitleIndex {
+
+    private final CompactArchive archive;
+    // Sorted, so the words with a given prefix are next to each other
+    private final String[] words;
+    // postings[i] holds the rows whose titles or IDs contain words[i]
+    private final int[][] postings;
+
+    public TitleIndex(CompactArchive archive) {
+        this.archive = archive;
+
+        Map<String, IntList> wordRows = new HashMap<String, IntList>();
+        List<String> rowWords = new ArrayList<String>();
+        char[] titles = archive.getTitleChars();
+        for (int row = 0; row < archive.size(); ++row) {
+            rowWords.clear();
+            tokenize(archive.getId(row), rowWords);
+            int start = archive.getTitleStart(row);
+            tokenize(titles, start, start + archive.getTitleLength(row),
+                    rowWords);
+            for (String word: rowWords) {
+                IntList list = wordRows.get(word);
+                if (list == null) {
+                    list = new IntList();
+                    wordRows.put(word, list);
+                }
+                list.addOnce(row);
+            }
+        }
+
+        words = wordRows.keySet().toArray(new String[wordRows.size()]);
+        Arrays.sort(words);
+        postings = new int[words.length][];
+        for (int i = 0; i < words.length; ++i) {
+            postings[i] = wordRows.get(words[i]).toArray();
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[2];
+        private int size = 0;
+
+        /* Values must be added in ascending order */
+        public void addOnce(int value) {
+            if (size > 0 && values[size-1] == value)
+                return;
+            if (size == values.length) {
+                int[] bigger = new int[size * 2];
+                System.arraycopy(values, 0, bigger, 0, size);
+                values = bigger;
+            }
+            values[size++] = value;
+        }
+
+        public int[] toArray() {
+            int[] array = new int[size];
+            System.arraycopy(values, 0, array, 0, size);
+            return array;
+        }
+    }
+
+    public CompactArchive getArchive() {
+        return archive;
+    }
+
+    /* Returns the matching rows in the order they appear in the archive */
+    public int[] search(String query) {
+        BitSet matches = null;
+        for (String prefix: tokenize(query)) {
+            BitSet prefixMatches = new BitSet(archive.size());
+            int i = Arrays.binarySearch(words, prefix);
+            if (i < 0) i = -i - 1;
+            for (; i < words.length && words[i].startsWith(prefix); ++i) {
+                for (int row: postings[i])
+                    prefixMatches.set(row);
+            }
+            if (matches == null)
+                matches = prefixMatches;
+            else
+                matches.and(prefixMatches);
+            if (matches.isEmpty())
+                break;
+        }
+
+        if (matches == null) {
+            matches = new BitSet(archive.size());
+            matches.set(0, archive.size());
+        }
+        int[] rows = new int[matches.cardinality()];
+        int count = 0;
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i+1))
+            rows[count++] = i;
+        return rows;
+    }
+
+    /* Splits text into lower case runs of letters and digits */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text != null)
+            tokenize(text, tokens);
+        return tokens;
+    }
+
+    private static void tokenize(String text, List<String> tokens) {
+        tokenize(text.toCharArray(), 0, text.length(), tokens);
+    }
+
+    private static void tokenize(char[] text, int start, int end,
+            List<String> tokens)
+    {
+        char[] word = new char[end - start];
+        int len = 0;
+        for (int i = start; i <= end; ++i) {
+            char c = i < end ? text[i] : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                // Unlike String.toLowerCase, doesn't depend on the locale
+                word[len++] = Character.toLowerCase(c);
+            } else if (len > 0) {
+                tokens.add(new String(word, 0, len));
+                len = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package net.bytten.xkcdviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.bytten.comicviewer.CompactArchive;
+
+/* Finds the comics listed on xkcd's archive page (http://xkcd.com/archive/)
+ * by scanning its bytes for links of the form
+ *
+ *     <a href="/1234/" title="2013-6-21">Title</a><br/>
+ *
+ * and adds them straight to a CompactArchive.Builder. Doesn't make a String
+ * per line or per match, and always decodes titles as UTF-8, whatever the
+ * platform's default charset.
+ *
+ * Doesn't depend on Android, so it can be run on a plain JVM. */
+public class XkcdArchiveScanner {
+
+    private static final byte[] ITEM_START = ascii("a href=\"/"),
+                                TITLE_ATTR = ascii("/\" title=\""),
+                                TITLE_START = ascii("\">"),
+                                LINK_END = ascii("a>"),
+                                BREAK = ascii("br/>");
+    // Comic numbers longer than this couldn't be held in an int
+    private static final int MAX_DIGITS = 9;
+
+    private final byte[] buf = new byte[8192];
+    private int pos, len;
+    private InputStream in;
+
+    // Holds the characters of the title currently being decoded
+    private char[] chars = new char[256];
+    private int charsLen;
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i)
+            bytes[i] = (byte)s.charAt(i);
+        return bytes;
+    }
+
+    /* Adds every comic listed in the page read from in to archive, and
+     * returns how many there were. */
+    public int scan(InputStream in, CompactArchive.Builder archive)
+        throws IOException, InterruptedException
+    {
+        this.in = in;
+        pos = len = 0;
+        int found = 0;
+        try {
+            int c;
+            while ((c = read()) != -1) {
+                if (c == '<' && scanItem(archive))
+                    ++found;
+            }
+        } finally {
+            this.in = null;
+        }
+        return found;
+    }
+
+    /* Called just after a '<'. If what follows is a comic's link, adds it
+     * and returns true. Otherwise returns false, leaving the byte that
+     * didn't match to be read again (it may be the start of a link). */
+    private boolean scanItem(CompactArchive.Builder archive)
+        throws IOException, InterruptedException
+    {
+        int num, year, month, day;
+        while (true) {
+            // Each time round, we're just after a '<'
+            if (!match(ITEM_START))
+                return false;
+
+            num = readNumber();
+            if (num < 0 || !match(TITLE_ATTR))
+                return false;
+
+            year = readNumber();
+            if (year < 0 || !match('-'))
+                return false;
+            month = readNumber();
+            if (month < 0 || !match('-'))
+                return false;
+            day = readNumber();
+            if (day < 0 || !match(TITLE_START))
+                return false;
+
+            if (!readTitle())
+                return false;
+            if (!match('/')) {
+                // The title ended at some other tag, which may be another link
+                continue;
+            }
+            if (charsLen == 0 || !match(LINK_END) || !match('<'))
+                return false;
+            if (match(BREAK))
+                break;
+            // Not followed by <br/>, but what follows the '<' may be a link
+        }
+
+        archive.add(num, year * 10000 + month * 100 + day, chars, 0, charsLen);
+        return true;
+    }
+
+    private boolean match(byte[] literal) throws IOException,
+        InterruptedException
+    {
+        for (byte b: literal) {
+            if (!match(b))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean match(int b) throws IOException, InterruptedException {
+        int c = read();
+        if (c == b)
+            return true;
+        unread(c);
+        return false;
+    }
+
+    /* Returns -1 if there's no number here */
+    private int readNumber() throws IOException, InterruptedException {
+        int n = 0, digits = 0, c;
+        while ((c = read()) >= '0' && c <= '9') {
+            if (++digits > MAX_DIGITS)
+                break;
+            n = n * 10 + (c - '0');
+        }
+        unread(c);
+        return digits == 0 || digits > MAX_DIGITS ? -1 : n;
+    }
+
+    /* Reads up to and including the next '<', putting the rest into chars.
+     * Returns false if the page ends first. */
+    private boolean readTitle() throws IOException, InterruptedException {
+        charsLen = 0;
+        int b;
+        while ((b = read()) != '<') {
+            if (b == -1) {
+                return false;
+            } else if (b < 0x80) {
+                append((char)b);
+            } else if ((b & 0xe0) == 0xc0) {
+                int c1 = continuation();
+                if (c1 < 0) continue;
+                append((char)(((b & 0x1f) << 6) | c1));
+            } else if ((b & 0xf0) == 0xe0) {
+                int c1 = continuation();
+                if (c1 < 0) continue;
+                int c2 = continuation();
+                if (c2 < 0) continue;
+                append((char)(((b & 0x0f) << 12) | (c1 << 6) | c2));
+            } else if ((b & 0xf8) == 0xf0) {
+                int c1 = continuation();
+                if (c1 < 0) continue;
+                int c2 = continuation();
+                if (c2 < 0) continue;
+                int c3 = continuation();
+                if (c3 < 0) continue;
+                int cp = (((b & 0x07) << 18) | (c1 << 12) | (c2 << 6) | c3)
+                    - 0x10000;
+                append((char)(0xd800 + (cp >> 10)));
+                append((char)(0xdc00 + (cp & 0x3ff)));
+            } else {
+                append('\ufffd');
+            }
+        }
+        return true;
+    }
+
+    /* Returns the low bits of a UTF-8 continuation byte. If the next byte
+     * isn't one, adds a replacement character, leaves the byte to be read
+     * again and returns -1. */
+    private int continuation() throws IOException, InterruptedException {
+        int b = read();
+        if ((b & 0xc0) == 0x80)
+            return b & 0x3f;
+        append('\ufffd');
+        unread(b);
+        return -1;
+    }
+
+    private void append(char c) {
+        if (charsLen == chars.length) {
+            char[] bigger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, bigger, 0, charsLen);
+            chars = bigger;
+        }
+        chars[charsLen++] = c;
+    }
+
+    /* Returns -1 at the end of the stream */
+    private int read() throws IOException, InterruptedException {
+        if (pos == len) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    /* Puts back the byte just read. The buffer is only refilled once it's
+     * all been read, so the byte is always still there. */
+    private void unread(int c) {
+        if (c != -1)
+            --pos;
+    }
+}
@@ -0,0 +1,225 @@
+package net.bytten.xkcdviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.bytten.comicviewer.ComicDataStore;
+import net.bytten.comicviewer.CompactArchive;
+import net.bytten.comicviewer.HttpClient;
+import net.bytten.comicviewer.ResponseStore;
+import net.bytten.comicviewer.Stats;
+
+/* Fetches comics and the archive from xkcd (or a server standing in for it)
+ * and decodes them. XkcdComicProvider adapts this for the app; doesn't depend
+ * on Android, so it can also be run and load-tested on a plain JVM. */
+public class XkcdClient {
+
+    public static final String XKCD_URL = "http://xkcd.com";
+    public static final String RANDOM_URL = "https://dynamic.xkcd.com/random/comic";
+
+    private static final Pattern comicDataPathPattern = Pattern.compile(
+            "/([0-9]+)/info\\.0\\.json");
+    /* Beyond this many new comics, fetching the archive page is cheaper than
+     * fetching each comic */
+    private static final int MAX_ARCHIVE_UPDATE = 20;
+
+    private final String baseUrl, randomUrl;
+    private final HttpClient http;
+    private ComicDataStore store = null;
+    private ResponseStore responses = null;
+
+    public XkcdClient(HttpClient http) {
+        this(XKCD_URL, RANDOM_URL, http);
+    }
+
+    /* baseUrl replaces http://xkcd.com in every comic data and archive URL,
+     * e.g. to point at a local server standing in for it. */
+    public XkcdClient(String baseUrl, String randomUrl, HttpClient http) {
+        this.baseUrl = baseUrl;
+        this.randomUrl = randomUrl;
+        this.http = http;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /* Where fetchComic may keep and look up comics it has already seen */
+    public void setComicDataStore(ComicDataStore store) {
+        this.store = store;
+    }
+
+    /* Where the archive page and the latest comic are kept, so that they
+     * are only downloaded again when they have changed */
+    public void setResponseStore(ResponseStore responses) {
+        this.responses = responses;
+    }
+
+    public String comicDataUrl(int num) {
+        return baseUrl+"/"+num+"/info.0.json";
+    }
+
+    public String latestComicDataUrl() {
+        return baseUrl+"/info.0.json";
+    }
+
+    /* Returns the number of the comic the data URL refers to, or -1 if it
+     * doesn't name a particular comic (e.g. the latest comic URL). */
+    public static int numberForComicDataUrl(String url) {
+        String path;
+        try {
+            path = new URL(url).getPath();
+        } catch (MalformedURLException e) {
+            return -1;
+        }
+        Matcher m = comicDataPathPattern.matcher(path);
+        if (!m.matches())
+            return -1;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public XkcdComic fetchComic(String url) throws IOException,
+        InterruptedException
+    {
+        // Comics never change once published, so a numbered comic we have
+        // seen before is served from the store. Only the latest comic URL
+        // needs to go to the network each time.
+        int num = numberForComicDataUrl(url);
+        if (store != null && num != -1) {
+            byte[] stored = store.getComicData(num);
+            if (stored != null) {
+                Stats.COMIC_STORE_HIT.increment();
+                long start = Stats.now();
+                XkcdComic data = decode(new ByteArrayInputStream(stored), null);
+                Stats.COMIC_PARSE.stop(start);
+                return data;
+            }
+            Stats.COMIC_STORE_MISS.increment();
+        }
+
+        if (num == -1 && responses != null) {
+            // The latest comic only changes a few times a week
+            byte[] body = http.fetchRevalidated(new URL(url), responses);
+            long start = Stats.now();
+            XkcdComic data = decode(new ByteArrayInputStream(body), null);
+            Stats.COMIC_PARSE.stop(start);
+            if (store != null)
+                store.putComicData(data.num, body);
+            return data;
+        }
+
+        HttpClient.Response response = http.open(new URL(url));
+        try {
+            // Keep a copy of the bytes as they are decoded for the store
+            ByteArrayOutputStream body = store == null ? null :
+                new ByteArrayOutputStream(2048);
+            long start = Stats.now();
+            XkcdComic data = decode(response.getInputStream(), body);
+            // Not counting the time spent waiting for the network
+            Stats.COMIC_PARSE.record(Stats.now() - start -
+                    response.getReadNanos());
+            if (store != null)
+                store.putComicData(data.num, body.toByteArray());
+            return data;
+        } finally {
+            response.close();
+        }
+    }
+
+    public XkcdComic fetchComic(int num) throws IOException,
+        InterruptedException
+    {
+        return fetchComic(comicDataUrl(num));
+    }
+
+    public XkcdComic fetchLatestComic() throws IOException,
+        InterruptedException
+    {
+        return fetchComic(latestComicDataUrl());
+    }
+
+    private static XkcdComic decode(InputStream in, OutputStream copy)
+        throws IOException, InterruptedException
+    {
+        // Uses xkcd's JSON interface
+        //      (http://xkcd.com/json.html)
+        XkcdComicDecoder decoder = new XkcdComicDecoder();
+        decoder.decode(in, copy);
+        XkcdComic data = new XkcdComic();
+        data.img = decoder.img;
+        data.alt = decoder.alt;
+        data.num = decoder.num;
+        data.title = decoder.title;
+        data.date = decoder.year * 10000 + decoder.month * 100 + decoder.day;
+        data.link = decoder.link;
+        return data;
+    }
+
+    /* Returns where the random comic page redirects to, or null if it
+     * didn't */
+    public String fetchRandomComicLocation() throws IOException,
+        InterruptedException
+    {
+        HttpClient.Response response = http.open(new URL(randomUrl), false);
+        try {
+            return response.getHeaderField("Location");
+        } finally {
+            response.close();
+        }
+    }
+
+    public CompactArchive fetchArchive() throws IOException,
+        InterruptedException
+    {
+        CompactArchive.Builder archiveItems = new CompactArchive.Builder();
+        URL url = new URL(baseUrl+"/archive/");
+        if (responses != null) {
+            byte[] page = http.fetchRevalidated(url, responses);
+            new XkcdArchiveScanner().scan(new ByteArrayInputStream(page),
+                    archiveItems);
+            return archiveItems.build();
+        }
+        HttpClient.Response response = http.open(url);
+        try {
+            new XkcdArchiveScanner().scan(response.getInputStream(),
+                    archiveItems);
+        } finally {
+            response.close();
+        }
+        return archiveItems.build();
+    }
+
+    /* Returns only the archive items newer than newest, newest first, or
+     * null if fetchArchive() would be quicker. */
+    public CompactArchive fetchArchiveUpdate(int newest) throws IOException,
+        InterruptedException
+    {
+        XkcdComic latest = fetchLatestComic();
+        if (latest.num < newest || latest.num - newest > MAX_ARCHIVE_UPDATE) {
+            // Either what we have is inconsistent with the site or it's too
+            // far out of date to be worth updating piecemeal
+            return null;
+        }
+
+        CompactArchive.Builder archiveItems = new CompactArchive.Builder();
+        for (int n = latest.num; n > newest; --n) {
+            // #404 is xkcd's error page!
+            if (n == 404) continue;
+            XkcdComic comic = n == latest.num ? latest : fetchComic(n);
+            archiveItems.add(Integer.toString(comic.num), comic.date,
+                    comic.title);
+        }
+        return archiveItems.build();
+    }
+}
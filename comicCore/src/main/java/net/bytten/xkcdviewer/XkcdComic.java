@@ -0,0 +1,12 @@
+package net.bytten.xkcdviewer;
+
+/* One comic's data as served by xkcd's JSON interface */
+public class XkcdComic {
+
+    public int num;
+    /* Publication date as yyyymmdd */
+    public int date;
+    public String title = "", alt = "", img = "";
+    /* Empty if the comic has no link */
+    public String link = "";
+}
@@ -0,0 +1,317 @@
+package net.bytten.xkcdviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.bytten.comicviewer.ComicParseException;
+
+/* Decodes xkcd's info.0.json (http://xkcd.com/json.html) straight off a
+ * byte stream into the fields below, without building the whole response
+ * as a String or a JSONObject first. Fields not listed are skipped over
+ * without being decoded.
+ *
+ * Doesn't depend on Android, so it can be run on a plain JVM. */
+public class XkcdComicDecoder {
+
+    public int num, year, month, day;
+    public String title, alt, img, link;
+
+    private final byte[] buf = new byte[4096];
+    private int pos, len;
+    private InputStream in;
+    private OutputStream copy;
+
+    // Holds the characters of the string currently being decoded
+    private char[] chars = new char[256];
+    private int charsLen;
+
+    /* Decodes one comic from in, replacing any previously decoded values.
+     * If copy isn't null, every byte read from in is also written to it. */
+    public void decode(InputStream in, OutputStream copy) throws IOException,
+        InterruptedException
+    {
+        this.in = in;
+        this.copy = copy;
+        pos = len = 0;
+        num = year = month = day = 0;
+        title = alt = img = link = "";
+        try {
+            decodeObject();
+        } finally {
+            this.in = null;
+            this.copy = null;
+        }
+    }
+
+    private void decodeObject() throws IOException, InterruptedException {
+        expect('{');
+        int c = nextNonSpace();
+        if (c == '}') return;
+        while (true) {
+            if (c != '"') throw syntaxError("Expected a key");
+            readString();
+            expect(':');
+            decodeField();
+            c = nextNonSpace();
+            if (c == '}') return;
+            if (c != ',') throw syntaxError("Expected ',' or '}'");
+            c = nextNonSpace();
+        }
+    }
+
+    private void decodeField() throws IOException, InterruptedException {
+        if (keyIs("num")) {
+            num = readInt();
+        } else if (keyIs("title")) {
+            title = readStringValue(false);
+        } else if (keyIs("alt")) {
+            alt = readStringValue(true);
+        } else if (keyIs("img")) {
+            img = readStringValue(false);
+        } else if (keyIs("link")) {
+            link = readStringValue(false);
+        } else if (keyIs("year")) {
+            year = parseInt(readStringValue(false));
+        } else if (keyIs("month")) {
+            month = parseInt(readStringValue(false));
+        } else if (keyIs("day")) {
+            day = parseInt(readStringValue(false));
+        } else {
+            skipValue(nextNonSpace());
+        }
+    }
+
+    private boolean keyIs(String key) {
+        if (key.length() != charsLen) return false;
+        for (int i = 0; i < charsLen; ++i) {
+            if (key.charAt(i) != chars[i]) return false;
+        }
+        return true;
+    }
+
+    private static int parseInt(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private int readInt() throws IOException, InterruptedException {
+        int c = nextNonSpace(), n = 0;
+        boolean negative = c == '-';
+        if (negative) c = next();
+        if (c < '0' || c > '9') throw syntaxError("Expected a number");
+        while (c >= '0' && c <= '9') {
+            n = n * 10 + (c - '0');
+            c = peek();
+            if (c >= '0' && c <= '9') ++pos;
+        }
+        return negative ? -n : n;
+    }
+
+    /* fixMojibake: xkcd's JSON gives some fields as the individual bytes of
+     * their UTF-8 encoding, each escaped as a character. If every character
+     * fits in a byte, put them back together as UTF-8. */
+    private String readStringValue(boolean fixMojibake) throws IOException,
+        InterruptedException
+    {
+        int c = nextNonSpace();
+        if (c == 'n') {
+            skipLiteral("ull");
+            return "";
+        }
+        if (c != '"') throw syntaxError("Expected a string");
+        readString();
+        if (fixMojibake) fixMojibake();
+        return new String(chars, 0, charsLen);
+    }
+
+    /* Reads the rest of a string (after its opening quote) into chars. */
+    private void readString() throws IOException, InterruptedException {
+        charsLen = 0;
+        while (true) {
+            int b = next();
+            if (b == '"') {
+                return;
+            } else if (b == '\\') {
+                append(readEscape());
+            } else if (b < 0x80) {
+                append((char)b);
+            } else if ((b & 0xe0) == 0xc0) {
+                append((char)(((b & 0x1f) << 6) | continuation()));
+            } else if ((b & 0xf0) == 0xe0) {
+                int hi = continuation();
+                append((char)(((b & 0x0f) << 12) | (hi << 6) | continuation()));
+            } else if ((b & 0xf8) == 0xf0) {
+                int cp = ((b & 0x07) << 18) | (continuation() << 12);
+                cp |= continuation() << 6;
+                cp |= continuation();
+                cp -= 0x10000;
+                append((char)(0xd800 + (cp >> 10)));
+                append((char)(0xdc00 + (cp & 0x3ff)));
+            } else {
+                append('\ufffd');
+            }
+        }
+    }
+
+    private int continuation() throws IOException, InterruptedException {
+        int b = next();
+        if ((b & 0xc0) != 0x80) throw syntaxError("Invalid UTF-8");
+        return b & 0x3f;
+    }
+
+    private char readEscape() throws IOException, InterruptedException {
+        int c = next();
+        switch (c) {
+        case 'b': return '\b';
+        case 'f': return '\f';
+        case 'n': return '\n';
+        case 'r': return '\r';
+        case 't': return '\t';
+        case 'u':
+            int u = 0;
+            for (int i = 0; i < 4; ++i) {
+                int h = Character.digit(next(), 16);
+                if (h == -1) throw syntaxError("Invalid \\u escape");
+                u = (u << 4) | h;
+            }
+            return (char)u;
+        default:
+            // \", \\ and \/
+            return (char)c;
+        }
+    }
+
+    private void append(char c) {
+        if (charsLen == chars.length) {
+            char[] bigger = new char[chars.length * 2];
+            System.arraycopy(chars, 0, bigger, 0, charsLen);
+            chars = bigger;
+        }
+        chars[charsLen++] = c;
+    }
+
+    private void fixMojibake() {
+        boolean highBytes = false;
+        for (int i = 0; i < charsLen; ++i) {
+            if (chars[i] > 0xff) return;
+            if (chars[i] >= 0x80) highBytes = true;
+        }
+        if (!highBytes) return;
+
+        // Decoding can only shrink the string, so do it in place
+        int out = 0;
+        for (int i = 0; i < charsLen; ) {
+            int b = chars[i], need, cp;
+            if (b < 0x80) { need = 0; cp = b; }
+            else if ((b & 0xe0) == 0xc0) { need = 1; cp = b & 0x1f; }
+            else if ((b & 0xf0) == 0xe0) { need = 2; cp = b & 0x0f; }
+            else if ((b & 0xf8) == 0xf0) { need = 3; cp = b & 0x07; }
+            else { need = -1; cp = b; }
+
+            int j = 1;
+            for (; need > 0 && j <= need; ++j) {
+                if (i + j >= charsLen || (chars[i+j] & 0xc0) != 0x80) break;
+                cp = (cp << 6) | (chars[i+j] & 0x3f);
+            }
+            if (need > 0 && j <= need) {
+                // Not UTF-8 after all; keep the character as it was
+                chars[out++] = (char)b;
+                ++i;
+            } else if (cp >= 0x10000) {
+                cp -= 0x10000;
+                chars[out++] = (char)(0xd800 + (cp >> 10));
+                chars[out++] = (char)(0xdc00 + (cp & 0x3ff));
+                i += need + 1;
+            } else {
+                chars[out++] = (char)cp;
+                i += Math.max(need, 0) + 1;
+            }
+        }
+        charsLen = out;
+    }
+
+    private void skipValue(int c) throws IOException, InterruptedException {
+        switch (c) {
+        case '"':
+            skipString();
+            break;
+        case '{':
+        case '[':
+            int depth = 1;
+            while (depth > 0) {
+                c = next();
+                if (c == '"') skipString();
+                else if (c == '{' || c == '[') ++depth;
+                else if (c == '}' || c == ']') --depth;
+            }
+            break;
+        default:
+            // Number, true, false or null
+            while (true) {
+                c = peek();
+                if (c == ',' || c == '}' || c == ']' || c <= ' ') break;
+                ++pos;
+            }
+        }
+    }
+
+    private void skipString() throws IOException, InterruptedException {
+        while (true) {
+            int b = next();
+            if (b == '"') return;
+            if (b == '\\') next();
+        }
+    }
+
+    private void skipLiteral(String rest) throws IOException,
+        InterruptedException
+    {
+        for (int i = 0; i < rest.length(); ++i) {
+            if (next() != rest.charAt(i)) throw syntaxError("Invalid literal");
+        }
+    }
+
+    private void expect(char c) throws IOException, InterruptedException {
+        if (nextNonSpace() != c) throw syntaxError("Expected '" + c + "'");
+    }
+
+    private int nextNonSpace() throws IOException, InterruptedException {
+        int c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int next() throws IOException, InterruptedException {
+        int c = peek();
+        if (c == -1) throw syntaxError("Unexpected end of data");
+        ++pos;
+        return c;
+    }
+
+    /* Returns -1 at the end of the stream */
+    private int peek() throws IOException, InterruptedException {
+        if (pos == len) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+            if (copy != null)
+                copy.write(buf, 0, len);
+        }
+        return buf[pos] & 0xff;
+    }
+
+    private ComicParseException syntaxError(String msg) {
+        return new ComicParseException("Invalid comic data: " + msg);
+    }
+}
@@ -2,10 +2,6 @@ package net.bytten.comicviewer;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.ArrayList;
-import java.util.List;
-
-import net.bytten.comicviewer.ArchiveData.ArchiveItem;
 import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.Context;
@@ -17,7 +13,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
@@ -28,7 +24,9 @@ import android.widget.Toast;
 public abstract class ArchiveActivity extends ListActivity {
     static public enum LoadType { ARCHIVE, BOOKMARKS, SEARCH_TITLE };
 
-    private List<ArchiveItem> archiveItems;
+    private CompactArchive archiveItems;
+    // The rows of archiveItems to show, or null for all of them
+    private int[] shownRows;
     
     protected String query = null;
     protected LoadType loadtype = LoadType.ARCHIVE;
@@ -42,6 +40,8 @@ public abstract class ArchiveActivity extends ListActivity {
         super.onCreate(savedInstanceState);
         
         comicDef = makeComicDef();
+        comicDef.getProvider().setComicInfoStore(ComicInfoStore.getInstance(this));
+        comicDef.getProvider().setResponseStore(Utility.getResponseStore(this));
         archive = ArchiveData.getArchive(comicDef);
 
         final Intent intent = getIntent();
@@ -53,12 +53,12 @@ public abstract class ArchiveActivity extends ListActivity {
 
     protected void resetContent() {
         new Utility.CancellableAsyncTaskWithProgressDialog<Object,
-        List<ArchiveItem> >(getTitle().toString())
+        CompactArchive>(getTitle().toString())
         {
             protected Throwable failReason = null;
 
             @Override
-            protected List<ArchiveItem> doInBackground(Object... params) {
+            protected CompactArchive doInBackground(Object param) {
                 try {
                     return fetchContent(loadtype, query);
                 } catch (Throwable e) {
@@ -68,7 +68,7 @@ public abstract class ArchiveActivity extends ListActivity {
             }
 
             @Override
-            protected void onPostExecute(List<ArchiveItem> result) {
+            protected void onPostExecute(CompactArchive result) {
                 super.onPostExecute(result);
                 if (result != null) {
                     showResults(loadtype, result);
@@ -89,7 +89,7 @@ public abstract class ArchiveActivity extends ListActivity {
                 }
             }
 
-        }.start(this, "Loading archive...", new Object[]{null});
+        }.start(this, "Loading archive...", null);
 
         getListView().setFastScrollEnabled(true);
     }
@@ -117,7 +117,7 @@ public abstract class ArchiveActivity extends ListActivity {
             Boolean>(getTitle().toString())
         {
             @Override
-            protected Boolean doInBackground(Object... params) {
+            protected Boolean doInBackground(Object param) {
                 try {
                     archive.refresh(ArchiveActivity.this);
                     return true;
@@ -138,7 +138,7 @@ public abstract class ArchiveActivity extends ListActivity {
                 }
             }
 
-        }.start(this, "Loading archive...", new Object[]{null});
+        }.start(this, "Loading archive...", null);
     }
 
     @Override
@@ -146,50 +146,98 @@ public abstract class ArchiveActivity extends ListActivity {
 
         Intent comic = new Intent();
         comic.addCategory(Intent.CATEGORY_BROWSABLE);
-        comic.putExtra(getPackageName()+ "comicId", archiveItems.get(position).comicId);
+        comic.putExtra(getPackageName()+ "comicId",
+                archiveItems.getId(getRow(position)));
 
         setResult(RESULT_OK, comic);
         finish();
     }
 
-    private class ArchiveAdapter extends ArrayAdapter<ArchiveItem> {
+    private int getRow(int position) {
+        return shownRows == null ? position : shownRows[position];
+    }
+
+    private static class RowViews {
+        CheckBox bookmarked;
+        TextView label;
+        // Reused for every row this view shows, to save making Strings
+        char[] labelChars = new char[64];
+        int row;
+    }
 
-        public ArchiveAdapter(Context context, int textViewResourceId, List<ArchiveItem> results) {
-            super(context, textViewResourceId, results);
+    /* Shows rows straight from the CompactArchive, without an object for
+     * each one */
+    private class ArchiveAdapter extends BaseAdapter {
+
+        private final CompactArchive archive;
+        private final int[] rows;
+
+        public ArchiveAdapter(CompactArchive archive, int[] rows) {
+            this.archive = archive;
+            this.rows = rows;
+        }
+
+        public int getCount() {
+            return rows == null ? archive.size() : rows.length;
+        }
+
+        public Object getItem(int position) {
+            return archive.getId(getItemRow(position));
+        }
+
+        public long getItemId(int position) {
+            return getItemRow(position);
+        }
+
+        private int getItemRow(int position) {
+            return rows == null ? position : rows[position];
         }
 
-        @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             View v = convertView;
+            final RowViews views;
             if(v == null) {
                 LayoutInflater vi = (LayoutInflater)getSystemService(LAYOUT_INFLATER_SERVICE);
                 v = vi.inflate(R.layout.archive_item_layout, null);
-            }
-
-            final ArchiveItem i = archiveItems.get(position);
-            if(i != null) {
-                CheckBox cb = (CheckBox) v.findViewById(R.id.archive_item_bookmarked);
-                TextView tv = (TextView) v.findViewById(R.id.archive_item_textView);
-
-                if(cb != null) {
-                    cb.setChecked(i.bookmarked);
-                    cb.setFocusable(false);
-                    cb.setFocusableInTouchMode(false);
-                    cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+                views = new RowViews();
+                views.bookmarked = (CheckBox) v.findViewById(R.id.archive_item_bookmarked);
+                views.label = (TextView) v.findViewById(R.id.archive_item_textView);
+                if (views.bookmarked != null) {
+                    views.bookmarked.setFocusable(false);
+                    views.bookmarked.setFocusableInTouchMode(false);
+                    views.bookmarked.setOnCheckedChangeListener(new OnCheckedChangeListener() {
                         @Override
                         public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                            int row = views.row;
+                            // Also called when a recycled view is given a row
+                            if (isChecked == archive.isBookmarked(row))
+                                return;
                             if (!isChecked) {
-                                BookmarksHelper.removeBookmark(getContext(), i.comicId);
+                                BookmarksHelper.removeBookmark(ArchiveActivity.this,
+                                        archive.getId(row));
                             } else {
-                                BookmarksHelper.addBookmark(getContext(), i.comicId, i.title);
+                                BookmarksHelper.addBookmark(ArchiveActivity.this,
+                                        archive.getId(row), archive.getTitle(row));
                             }
-                            i.bookmarked = !i.bookmarked;
+                            archive.setBookmarked(row, isChecked);
                         }
                     });
                 }
-                if(tv != null) {
-                    tv.setText(i.toString());
-                }
+                v.setTag(views);
+            } else {
+                views = (RowViews) v.getTag();
+            }
+
+            views.row = getItemRow(position);
+            if(views.bookmarked != null) {
+                views.bookmarked.setChecked(archive.isBookmarked(views.row));
+            }
+            if(views.label != null) {
+                int length = archive.getLabelLength(views.row);
+                if (length > views.labelChars.length)
+                    views.labelChars = new char[length * 2];
+                archive.getLabel(views.row, views.labelChars);
+                views.label.setText(views.labelChars, 0, length);
             }
 
             v.setEnabled(true);
@@ -197,7 +245,8 @@ public abstract class ArchiveActivity extends ListActivity {
         }
     }
 
-    protected List<ArchiveItem> fetchContent(LoadType loadtype, String query) throws Throwable {
+    /* Sets archiveItems and shownRows */
+    protected CompactArchive fetchContent(LoadType loadtype, String query) throws Throwable {
         switch (loadtype) {
         case BOOKMARKS:
             return fetchBookmarks();
@@ -208,33 +257,21 @@ public abstract class ArchiveActivity extends ListActivity {
         }
     }
 
-    protected List<ArchiveItem> fetchArchive() throws Throwable {
+    protected CompactArchive fetchArchive() throws Throwable {
         archiveItems = archive.getData(this);
+        shownRows = null;
         return archiveItems;
     }
 
-    protected List<ArchiveItem> fetchBookmarks() throws Throwable {
+    protected CompactArchive fetchBookmarks() throws Throwable {
         archiveItems = BookmarksHelper.getBookmarks(this);
+        shownRows = null;
         return archiveItems;
     }
 
-    protected List<ArchiveItem> fetchSearchByTitleResults(String titleQuery) throws Throwable {
-        String[] titleWords = titleQuery.toLowerCase().split("\\s");
-        List<ArchiveItem> rawItems = fetchArchive();
-        archiveItems = new ArrayList<ArchiveItem>();
-        Utility.allowInterrupt();
-        for (int i = 0; i < rawItems.size(); i++) {
-            String title = rawItems.get(i).title.toLowerCase();
-            boolean titleMatches = true;
-            for (String w: titleWords) {
-                if (title.indexOf(w) == -1) {
-                    titleMatches = false;
-                    break;
-                }
-            }
-            if (titleMatches)
-                archiveItems.add(rawItems.get(i));
-        }
+    protected CompactArchive fetchSearchByTitleResults(String titleQuery) throws Throwable {
+        archiveItems = archive.getData(this);
+        shownRows = archive.searchTitles(archiveItems, titleQuery);
         return archiveItems;
     }
     
@@ -242,7 +279,7 @@ public abstract class ArchiveActivity extends ListActivity {
     protected abstract String getStringSearchByTitle();
     protected abstract String getStringArchive();
 
-    protected void showResults(LoadType loadType, List<ArchiveItem> results) {
+    protected void showResults(LoadType loadType, CompactArchive results) {
         switch (loadType) {
         case BOOKMARKS:
             setTitle(getStringBookmarks());
@@ -253,7 +290,7 @@ public abstract class ArchiveActivity extends ListActivity {
         default:
             setTitle(getStringArchive());
         }
-        setListAdapter(new ArchiveAdapter(this, R.layout.archive_item_layout, results));
+        setListAdapter(new ArchiveAdapter(results, shownRows));
     }
 
     /* Only call this from the UI thread */
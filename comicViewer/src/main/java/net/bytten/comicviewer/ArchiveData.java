@@ -1,9 +1,10 @@
 package net.bytten.comicviewer;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import android.content.Context;
@@ -16,9 +17,13 @@ public class ArchiveData {
     /* The maximum age the cache is allowed to reach in milliseconds */
     private static final long CACHE_AGE_LIMIT = 60*60*1000; // = 1 hour
 
+    /* A single comic, for passing a few to BookmarksHelper. The archive
+     * itself is kept as a CompactArchive. */
     public static class ArchiveItem {
         public boolean bookmarked = false;
         public String title, comicId;
+        /* Publication date as yyyymmdd, or 0 if unknown */
+        public int date = 0;
 
         @Override
         public String toString() {
@@ -28,9 +33,16 @@ public class ArchiveData {
 
     /* Putting the cache in a SoftReference means the system can still
      * garbage collect it if low on memory. */
-    private SoftReference<List<ArchiveItem>> cache = null;
+    private SoftReference<CompactArchive> cache = null;
     private Date cacheModDate = null;
     private IComicDefinition comicDef;
+    private boolean refreshing = false;
+    private TitleIndex titleIndex = null;
+    /* Each load of the archive is numbered as it starts, so a slow one can't
+     * replace what a later one has already put in the cache */
+    private int loadsStarted = 0, newestLoadCached = 0;
+    // Held while writing the snapshot, so writes can't overtake each other
+    private final Object snapshotLock = new Object();
 
     private ArchiveData(IComicDefinition comicDef) {
         this.comicDef = comicDef;
@@ -46,39 +58,201 @@ public class ArchiveData {
         return archRef.get();
     }
     
-    public boolean isCacheValid() {
+    public synchronized boolean isCacheValid() {
         return cache != null && cache.get() != null && cacheModDate != null &&
-            cacheModDate.before(new Date(cacheModDate.getTime() +
+            new Date().before(new Date(cacheModDate.getTime() +
                     CACHE_AGE_LIMIT));
     }
 
     /* Do NOT call in a UI thread. May block until data has been fetched.
-     * Do NOT add or remove elements from the returned list (but bookmarking
-     *     may be altered). */
-    public List<ArchiveItem> getData(Context cxt) throws Exception {
-        List<ArchiveItem> cacheVal = cache == null ? null : cache.get();
+     * Only bookmarking may be altered in the returned archive. */
+    public CompactArchive getData(Context cxt) throws Exception {
+        CompactArchive cacheVal = getCache();
+        if (cacheVal == null) {
+            cacheVal = readSnapshot(cxt);
+            if (cacheVal == null)
+                return fetchData(cxt);
+            // Show what we had last time and bring it up to date afterwards
+            if (!isCacheValid())
+                refreshInBackground(cxt, cacheVal);
+            return cacheVal;
+        }
         if (!isCacheValid())
-            return fetchData(cxt);
+            return updateData(cxt, cacheVal);
         return cacheVal;
     }
 
+    /* Returns the ID of the newest item in the archive if it's already in
+     * memory, otherwise null. Doesn't block, so may be called in a UI
+     * thread. */
+    public String peekNewestId() {
+        CompactArchive cacheVal = getCache();
+        if (cacheVal == null || cacheVal.size() == 0)
+            return null;
+        return cacheVal.getId(0);
+    }
+
+    /* Unlike getData, always fetches the whole archive again. */
     public void refresh(Context cxt) throws Exception {
         fetchData(cxt);
     }
 
-    private List<ArchiveItem> fetchData(Context cxt) throws Exception {
-        List<ArchiveItem> archiveItems = comicDef.getProvider().fetchArchive();
-        
-        for (ArchiveItem item: archiveItems) {
-            if (BookmarksHelper.isBookmarked(cxt, item)) {
-                item.bookmarked = true;
+    private CompactArchive fetchData(Context cxt) throws Exception {
+        int load = startLoad();
+        CompactArchive archiveItems = comicDef.getProvider().fetchArchive();
+        markBookmarks(cxt, archiveItems);
+        return publish(cxt, load, archiveItems, new Date(), true);
+    }
+
+    /* Normally only a comic or two has been added since the archive was last
+     * fetched, so ask the provider for just those. Falls back to fetching the
+     * whole archive if it can't. */
+    private CompactArchive updateData(Context cxt, CompactArchive old)
+        throws Exception
+    {
+        if (old.size() == 0)
+            return fetchData(cxt);
+        int load = startLoad();
+        CompactArchive newer = comicDef.getProvider().fetchArchiveUpdate(
+                old.getId(0));
+        if (newer == null)
+            return fetchData(cxt);
+
+        markBookmarks(cxt, newer);
+        CompactArchive archiveItems = new CompactArchive.Builder()
+            .addAll(newer).addAll(old).build();
+        return publish(cxt, load, archiveItems, new Date(), true);
+    }
+
+    private synchronized int startLoad() {
+        return ++loadsStarted;
+    }
+
+    /* Caches archiveItems, the result of the given load, and optionally
+     * writes it to the snapshot, unless a later load has already been
+     * cached. Returns what's now cached. */
+    private CompactArchive publish(Context cxt, int load,
+            CompactArchive archiveItems, Date modDate, boolean snapshot)
+    {
+        synchronized (this) {
+            if (load < newestLoadCached) {
+                CompactArchive newer = getCache();
+                return newer != null ? newer : archiveItems;
             }
+            newestLoadCached = load;
+            setCache(archiveItems, modDate);
+        }
+        if (snapshot) {
+            synchronized (snapshotLock) {
+                synchronized (this) {
+                    if (load != newestLoadCached)
+                        return archiveItems;
+                }
+                writeSnapshot(cxt, archiveItems);
+            }
+        }
+        return archiveItems;
+    }
+
+    private void refreshInBackground(Context cxt,
+            final CompactArchive old)
+    {
+        synchronized (this) {
+            if (refreshing) return;
+            refreshing = true;
         }
+        final Context appCxt = cxt.getApplicationContext();
+        TaskScheduler.getInstance().submit(TaskScheduler.PREFETCH,
+                new Runnable() {
+            public void run() {
+                try {
+                    updateData(appCxt, old);
+                } catch (Exception e) {
+                    // Keep serving the snapshot; try again next time
+                    e.printStackTrace();
+                } finally {
+                    synchronized (ArchiveData.this) {
+                        refreshing = false;
+                    }
+                }
+            }
+        });
+    }
 
+    private File getSnapshotFile(Context cxt) {
+        return new File(cxt.getFilesDir(),
+                "archive-" + comicDef.getComicTitleAbbrev());
+    }
+
+    /* Returns null if there's no usable snapshot */
+    private CompactArchive readSnapshot(Context cxt) {
+        File file = getSnapshotFile(cxt);
+        int load = startLoad();
+        try {
+            CompactArchive archiveItems = ArchiveSnapshot.read(file);
+            if (archiveItems == null)
+                return null;
+            markBookmarks(cxt, archiveItems);
+            return publish(cxt, load, archiveItems,
+                    new Date(file.lastModified()), false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeSnapshot(Context cxt, CompactArchive archiveItems) {
+        try {
+            ArchiveSnapshot.write(getSnapshotFile(cxt), archiveItems);
+        } catch (IOException e) {
+            // Only costs us a slower start next time
+            e.printStackTrace();
+        }
+    }
+
+    private void markBookmarks(Context cxt, CompactArchive archiveItems) {
+        if (!archiveItems.hasNumericIds()) {
+            // Not in the set, so ask the database
+            for (int row = 0; row < archiveItems.size(); ++row) {
+                archiveItems.setBookmarked(row, BookmarksHelper.isBookmarked(
+                        cxt, archiveItems.getId(row)));
+            }
+            return;
+        }
+        // One query for all the bookmarks rather than one per item
+        archiveItems.setBookmarked(BookmarksHelper.getBookmarkedNumbers(cxt));
+    }
+
+    private synchronized CompactArchive getCache() {
+        return cache == null ? null : cache.get();
+    }
+
+    private synchronized void setCache(CompactArchive archiveItems,
+            Date modDate)
+    {
         if (cache != null)
             cache.clear();
-        cache = new SoftReference<List<ArchiveItem>>(archiveItems);
-        cacheModDate = new Date();
-        return archiveItems;
+        cache = new SoftReference<CompactArchive>(archiveItems);
+        cacheModDate = modDate;
+        titleIndex = null;
+    }
+
+    /* Do NOT call in a UI thread. Returns the rows of archiveItems (as
+     * returned by getData) whose titles match query, as described in
+     * TitleIndex. */
+    public int[] searchTitles(CompactArchive archiveItems, String query) {
+        TitleIndex index;
+        synchronized (this) {
+            index = titleIndex;
+        }
+        if (index == null || index.getArchive() != archiveItems) {
+            // Built on first use, and again whenever the archive changes
+            index = new TitleIndex(archiveItems);
+            synchronized (this) {
+                if (getCache() == archiveItems)
+                    titleIndex = index;
+            }
+        }
+        return index.search(query);
     }
 }
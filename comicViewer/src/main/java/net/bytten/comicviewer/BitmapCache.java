@@ -0,0 +1,249 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/* Decoded comic images kept in memory in front of ImageCache, so going back
+ * to a comic doesn't decode it again. It holds at most a quarter of the app's
+ * memory class. The bitmaps it evicts are kept for new images to be decoded
+ * into, where Android allows that, instead of being left for the garbage
+ * collector, and only recycled when they don't fit.
+ *
+ * The bitmap being shown is pinned, so it's never evicted or reused while
+ * it's on screen. Apart from decode, call in the UI thread. */
+public class BitmapCache {
+
+    /* Share of the memory class to use */
+    private static final int FRACTION = 4;
+
+    private static BitmapCache instance = null;
+    public static synchronized BitmapCache getInstance(Context cxt) {
+        if (instance == null) {
+            long memoryClass = VersionHacks.getSdkInt() >= 5 ?
+                MemoryClass.get(cxt) * 1024L * 1024L :
+                Runtime.getRuntime().maxMemory();
+            instance = new BitmapCache(memoryClass / FRACTION);
+        }
+        return instance;
+    }
+
+    /* ActivityManager.getMemoryClass is only there from Android 2.0 */
+    private static class MemoryClass {
+        static int get(Context cxt) {
+            return ((ActivityManager)cxt.getSystemService(
+                    Context.ACTIVITY_SERVICE)).getMemoryClass();
+        }
+    }
+
+    /* Decoding into an existing bitmap is only possible from Android 3.0,
+     * and until 4.4 only into one exactly the same size, with no scaling */
+    private static class Reuse {
+        static final boolean SUPPORTED = VersionHacks.getSdkInt() >= 11;
+
+        static void setMutable(BitmapFactory.Options options) {
+            options.inMutable = true;
+        }
+        static void setInBitmap(BitmapFactory.Options options, Bitmap bm) {
+            options.inBitmap = bm;
+        }
+        static boolean canReuse(Bitmap bm, int width, int height,
+                int sampleSize)
+        {
+            if (!bm.isMutable() || bm.getConfig() != Bitmap.Config.ARGB_8888)
+                return false;
+            if (VersionHacks.getSdkInt() >= 19) {
+                width = (width + sampleSize - 1) / sampleSize;
+                height = (height + sampleSize - 1) / sampleSize;
+                return byteCount(bm) >= (long)width * height * 4;
+            }
+            return sampleSize == 1 && bm.getWidth() == width &&
+                bm.getHeight() == height;
+        }
+    }
+
+    private final long maxBytes;
+    private long totalBytes = 0;
+    // Least recently used first
+    private final LinkedHashMap<String, Bitmap> bitmaps =
+        new LinkedHashMap<String, Bitmap>(8, 0.75f, true);
+    // Evicted bitmaps that may be decoded into, oldest first
+    private final List<Bitmap> reusable = new ArrayList<Bitmap>();
+    private Bitmap pinned = null;
+
+    public BitmapCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static long byteCount(Bitmap bm) {
+        return (long)bm.getRowBytes() * bm.getHeight();
+    }
+
+    /* Returns null if the image for key isn't in the cache. */
+    public synchronized Bitmap get(String key) {
+        Bitmap bm = bitmaps.get(key);
+        if (bm == null || bm.isRecycled()) {
+            Stats.BITMAP_CACHE_MISS.increment();
+            return null;
+        }
+        Stats.BITMAP_CACHE_HIT.increment();
+        return bm;
+    }
+
+    public synchronized void put(String key, Bitmap bm) {
+        Bitmap old = bitmaps.put(key, bm);
+        if (old == bm)
+            return;
+        totalBytes += byteCount(bm);
+        if (old != null) {
+            totalBytes -= byteCount(old);
+            release(old);
+        }
+        // Not bm itself, which may be about to be shown
+        trim(bm);
+    }
+
+    /* Marks bm as the bitmap on screen, or null for none. The one it
+     * replaces may then be evicted. */
+    public synchronized void pin(Bitmap bm) {
+        Bitmap old = pinned;
+        pinned = bm;
+        // It may have been evicted while it was on screen
+        if (old != null && old != bm && !bitmaps.containsValue(old))
+            release(old);
+        trim(null);
+    }
+
+    /* An evicted bitmap is kept to decode into if it can be, and counts
+     * towards totalBytes until it is, or until it is recycled. */
+    private void release(Bitmap bm) {
+        if (bm == pinned || bm.isRecycled())
+            return;
+        if (Reuse.SUPPORTED && bm.isMutable()) {
+            reusable.add(bm);
+            totalBytes += byteCount(bm);
+        } else {
+            bm.recycle();
+        }
+    }
+
+    /* Evicts the least recently used bitmaps other than keep, then recycles
+     * the oldest reusable ones, until the cache fits in maxBytes */
+    private void trim(Bitmap keep) {
+        Iterator<Map.Entry<String, Bitmap>> it =
+            bitmaps.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Bitmap bm = it.next().getValue();
+            if (bm == pinned || bm == keep)
+                continue;
+            it.remove();
+            totalBytes -= byteCount(bm);
+            release(bm);
+        }
+        while (totalBytes > maxBytes && !reusable.isEmpty()) {
+            Bitmap bm = reusable.remove(0);
+            totalBytes -= byteCount(bm);
+            bm.recycle();
+        }
+    }
+
+    /* Takes a reusable bitmap that an image of the given size can be decoded
+     * into, or returns null if there isn't one. */
+    private synchronized Bitmap takeReusable(int width, int height,
+            int sampleSize)
+    {
+        for (int i = 0; i < reusable.size(); ++i) {
+            Bitmap bm = reusable.get(i);
+            if (Reuse.canReuse(bm, width, height, sampleSize)) {
+                reusable.remove(i);
+                totalBytes -= byteCount(bm);
+                return bm;
+            }
+        }
+        return null;
+    }
+
+    /* Drops everything that isn't on screen. Cached bitmaps are left for
+     * the garbage collector rather than recycled, since this may be called
+     * from any thread and one may have just been got for the screen. */
+    public synchronized void clear() {
+        Iterator<Bitmap> it = bitmaps.values().iterator();
+        while (it.hasNext()) {
+            Bitmap bm = it.next();
+            if (bm == pinned)
+                continue;
+            it.remove();
+            totalBytes -= byteCount(bm);
+        }
+        for (Bitmap bm: reusable) {
+            totalBytes -= byteCount(bm);
+            bm.recycle();
+        }
+        reusable.clear();
+    }
+
+    /* Do NOT call in a UI thread. Decodes the image in file like
+     * ComicImageView.decodeFile, into a reusable bitmap if there is one
+     * that fits. The result isn't cached until it's put. */
+    public Bitmap decode(File file, long maxPixels) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int width = options.outWidth, height = options.outHeight;
+        int sampleSize = ComicImageView.getSampleSize(width, height,
+                maxPixels);
+
+        Bitmap reuse = Reuse.SUPPORTED ?
+            takeReusable(width, height, sampleSize) : null;
+        if (reuse != null) {
+            options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Reuse.setMutable(options);
+            Reuse.setInBitmap(options, reuse);
+            try {
+                Bitmap bm = BitmapFactory.decodeFile(file.getPath(), options);
+                if (bm != null) {
+                    Stats.BITMAP_REUSED.increment();
+                    return bm;
+                }
+            } catch (IllegalArgumentException e) {
+                // Not compatible after all
+            }
+            reuse.recycle();
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (Reuse.SUPPORTED)
+            Reuse.setMutable(options);
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (OutOfMemoryError e) {
+            // Make room and try once more
+            clear();
+            try {
+                return BitmapFactory.decodeFile(file.getPath(), options);
+            } catch (OutOfMemoryError e2) {
+                return null;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.bytten.comicviewer;
 
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 import net.bytten.comicviewer.ArchiveData.ArchiveItem;
@@ -8,11 +9,12 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class BookmarksHelper extends SQLiteOpenHelper {
 
     public static final String DB_NAME    = "bookmarks";
-    public static final int    DB_VERSION = 1;
+    public static final int    DB_VERSION = 4;
 
     public BookmarksHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
@@ -22,11 +24,46 @@ public class BookmarksHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         /* The field 'number' is so named because of historical reasons where
          * all supported comics were xkcd, whose comic ID is a number. */
-        db.execSQL("CREATE TABLE bookmarks (number TEXT, title TEXT);");
+        db.execSQL("CREATE TABLE bookmarks (number INTEGER PRIMARY KEY, " +
+                "title TEXT, added INTEGER NOT NULL DEFAULT 0);");
+        createNamedBookmarks(db);
+    }
+
+    /* Bookmarks of comics whose IDs aren't numbers */
+    private static void createNamedBookmarks(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE named_bookmarks (id TEXT PRIMARY KEY, " +
+                "title TEXT, added INTEGER NOT NULL DEFAULT 0);");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // SQLiteOpenHelper runs this in a transaction, so it's all or nothing
+        if (oldVersion < 2) {
+            /* Version 1 had no key, so tapping the star twice could add a
+             * comic twice. Keep one row per comic, with those that aren't
+             * numbers in their own table. */
+            db.execSQL("ALTER TABLE bookmarks RENAME TO bookmarks_v1;");
+            onCreate(db);
+            db.execSQL("INSERT OR IGNORE INTO bookmarks (number, title, added) " +
+                    "SELECT CAST(number AS INTEGER), title, 0 FROM bookmarks_v1 " +
+                    "WHERE number != '' AND number NOT GLOB '*[^0-9]*';");
+            db.execSQL("INSERT OR IGNORE INTO named_bookmarks (id, title, added) " +
+                    "SELECT number, title, 0 FROM bookmarks_v1 " +
+                    "WHERE number != '' AND number GLOB '*[^0-9]*';");
+            db.execSQL("DROP TABLE bookmarks_v1;");
+        } else if (oldVersion < 4) {
+            createNamedBookmarks(db);
+        }
+        if (oldVersion < 3) {
+            /* Bookmarks made from the archive used to have the number at the
+             * start of the title, which is now shown separately */
+            db.execSQL("UPDATE bookmarks SET title = " +
+                    "substr(title, length(number) + 4) " +
+                    "WHERE substr(title, 1, length(number) + 3) = number || ' - ';");
+            db.execSQL("UPDATE named_bookmarks SET title = " +
+                    "substr(title, length(id) + 4) " +
+                    "WHERE substr(title, 1, length(id) + 3) = id || ' - ';");
+        }
     }
 
     protected static SQLiteDatabase dbInstance = null;
@@ -37,53 +74,174 @@ public class BookmarksHelper extends SQLiteOpenHelper {
         return dbInstance;
     }
 
-    public static List<ArchiveItem> getBookmarks(Context cxt) {
-        final Cursor results = getDb(cxt).rawQuery("SELECT * FROM bookmarks", new String[]{});
+    public static CompactArchive getBookmarks(Context cxt) {
+        final Cursor results = getDb(cxt).rawQuery("SELECT number, title FROM bookmarks " +
+                "UNION ALL SELECT id, title FROM named_bookmarks", new String[]{});
         try {
-            List<ArchiveItem> list = new ArrayList<ArchiveItem>();
-            if (results.getCount() > 0) {
-                results.moveToNext();
-                while (!results.isAfterLast()) {
-                    ArchiveItem item = new ArchiveItem();
-                    item.comicId = results.getString(0);
-                    item.title = results.getString(1);
-                    item.bookmarked = true;
-                    list.add(item);
-                    results.moveToNext();
-                }
+            CompactArchive.Builder builder = new CompactArchive.Builder();
+            while (results.moveToNext()) {
+                String title = results.getString(1);
+                builder.add(results.getString(0), 0, title == null ? "" : title);
             }
-            return list;
+            CompactArchive bookmarks = builder.build();
+            for (int row = 0; row < bookmarks.size(); ++row)
+                bookmarks.setBookmarked(row, true);
+            return bookmarks;
         } finally {
             results.close();
         }
     }
-    public static boolean isBookmarked(Context cxt, String comicNumber) {
-        final Cursor results = getDb(cxt).rawQuery(
-                "SELECT * FROM bookmarks WHERE number = ?",
-                new String[]{comicNumber});
+    /* Returns the numbers of all bookmarked comics, in one query. Those
+     * whose IDs aren't numbers aren't included. */
+    public static BitSet getBookmarkedNumbers(Context cxt) {
+        final Cursor results = getDb(cxt).rawQuery("SELECT number FROM bookmarks", new String[]{});
         try {
-            return results.getCount() > 0;
+            BitSet numbers = new BitSet();
+            while (results.moveToNext()) {
+                int n = results.getInt(0);
+                if (n >= 0) numbers.set(n);
+            }
+            return numbers;
         } finally {
             results.close();
         }
     }
+    public static boolean isBookmarked(Context cxt, String comicNumber) {
+        if (comicNumber == null)
+            return false;
+        Long number = parseNumber(comicNumber);
+        // Looks the ID up in the primary key's index
+        final SQLiteStatement query = getDb(cxt).compileStatement(number != null ?
+                "SELECT COUNT(*) FROM bookmarks WHERE number = ?" :
+                "SELECT COUNT(*) FROM named_bookmarks WHERE id = ?");
+        try {
+            bindId(query, 1, comicNumber, number);
+            return query.simpleQueryForLong() > 0;
+        } finally {
+            query.close();
+        }
+    }
     public static boolean isBookmarked(Context cxt, ArchiveItem item) {
         return isBookmarked(cxt, item.comicId);
     }
     public static void addBookmark(Context cxt, String comicNumber, String title) {
-        getDb(cxt).execSQL(
-                "INSERT INTO bookmarks VALUES (?, ?)",
-                new Object[]{comicNumber, title});
+        ArchiveItem item = new ArchiveItem();
+        item.comicId = comicNumber;
+        item.title = title;
+        addBookmarks(cxt, Collections.singletonList(item));
     }
     public static void addBookmark(Context cxt, ArchiveItem item) {
-        addBookmark(cxt, item.comicId, item.title);
+        addBookmarks(cxt, Collections.singletonList(item));
+    }
+    /* Adds all the items in one transaction. Items already bookmarked just
+     * have their title updated, keeping when they were added. */
+    public static void addBookmarks(Context cxt, List<ArchiveItem> items) {
+        final SQLiteDatabase db = getDb(cxt);
+        final long now = System.currentTimeMillis();
+        SQLiteStatement insert = null, rename = null,
+                        insertNamed = null, renameNamed = null;
+        try {
+            insert = db.compileStatement(
+                    "INSERT OR IGNORE INTO bookmarks (number, title, added) VALUES (?, ?, ?)");
+            rename = db.compileStatement(
+                    "UPDATE bookmarks SET title = ? WHERE number = ?");
+            insertNamed = db.compileStatement(
+                    "INSERT OR IGNORE INTO named_bookmarks (id, title, added) VALUES (?, ?, ?)");
+            renameNamed = db.compileStatement(
+                    "UPDATE named_bookmarks SET title = ? WHERE id = ?");
+            db.beginTransaction();
+            try {
+                for (ArchiveItem item: items) {
+                    if (item.comicId == null)
+                        continue;
+                    Long number = parseNumber(item.comicId);
+                    SQLiteStatement add = number != null ? insert : insertNamed,
+                                    update = number != null ? rename : renameNamed;
+                    bindId(add, 1, item.comicId, number);
+                    bindTitle(add, 2, item.title);
+                    add.bindLong(3, now);
+                    add.execute();
+
+                    bindTitle(update, 1, item.title);
+                    bindId(update, 2, item.comicId, number);
+                    update.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            if (insert != null) insert.close();
+            if (rename != null) rename.close();
+            if (insertNamed != null) insertNamed.close();
+            if (renameNamed != null) renameNamed.close();
+        }
     }
     public static void removeBookmark(Context cxt, String comicNumber) {
-        getDb(cxt).execSQL(
-                "DELETE FROM bookmarks WHERE number = ?",
-                new Object[]{comicNumber});
+        ArchiveItem item = new ArchiveItem();
+        item.comicId = comicNumber;
+        removeBookmarks(cxt, Collections.singletonList(item));
     }
     public static void removeBookmark(Context cxt, ArchiveItem item) {
-        removeBookmark(cxt, item.comicId);
+        removeBookmarks(cxt, Collections.singletonList(item));
+    }
+    /* Removes all the items in one transaction */
+    public static void removeBookmarks(Context cxt, List<ArchiveItem> items) {
+        final SQLiteDatabase db = getDb(cxt);
+        SQLiteStatement delete = null, deleteNamed = null;
+        try {
+            delete = db.compileStatement(
+                    "DELETE FROM bookmarks WHERE number = ?");
+            deleteNamed = db.compileStatement(
+                    "DELETE FROM named_bookmarks WHERE id = ?");
+            db.beginTransaction();
+            try {
+                for (ArchiveItem item: items) {
+                    if (item.comicId == null)
+                        continue;
+                    Long number = parseNumber(item.comicId);
+                    SQLiteStatement remove = number != null ? delete : deleteNamed;
+                    bindId(remove, 1, item.comicId, number);
+                    remove.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            if (delete != null) delete.close();
+            if (deleteNamed != null) deleteNamed.close();
+        }
+    }
+
+    /* Returns null if id isn't all digits (as the upgrade from version 1
+     * decides), so belongs in named_bookmarks */
+    private static Long parseNumber(String id) {
+        if (id.length() == 0 || id.length() > 18)
+            return null;
+        for (int i = 0; i < id.length(); ++i) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return null;
+        }
+        return Long.valueOf(id);
+    }
+
+    private static void bindId(SQLiteStatement statement, int index,
+            String id, Long number)
+    {
+        if (number != null)
+            statement.bindLong(index, number);
+        else
+            statement.bindString(index, id);
+    }
+
+    private static void bindTitle(SQLiteStatement statement, int index,
+            String title)
+    {
+        if (title == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, title);
     }
 }
@@ -0,0 +1,339 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.ImageView;
+
+/* Shows a comic's image, which may be dragged around and zoomed by pinching,
+ * double tapping or the zoom buttons. A single tap is a click, which shows
+ * the alt text. Much lighter than the WebView it replaces: it holds only the
+ * decoded bitmap, and changing comic is just drawing a different one. Comics
+ * too big for that are shown as a TiledImage instead. */
+public class ComicImageView extends ImageView {
+
+    /* How far in from the size that fits the view the image may be zoomed */
+    private static final float MAX_ZOOM = 4.0f;
+    private static final float ZOOM_STEP = 1.5f;
+    private static final long ZOOM_CONTROLS_TIMEOUT = 3000; // = 3 seconds
+
+    // Maps the image to the view. For a TiledImage the bitmap is its
+    // preview, so it is drawn with drawMatrix, which scales it up to match.
+    private final Matrix matrix = new Matrix(), drawMatrix = new Matrix();
+    private final float[] values = new float[9];
+    private Bitmap bitmap = null;
+    private TiledImage tiled = null;
+    private BitmapCache cache = null;
+    private Runnable onShown = null;
+    private float minScale = 1, maxScale = 1, fitScale = 1;
+    private boolean allowPinchZoom = true;
+    private View zoomControls = null;
+    private final Runnable hideZoomControls = new Runnable() {
+        public void run() {
+            if (zoomControls != null)
+                zoomControls.setVisibility(View.GONE);
+        }
+    };
+
+    private GestureDetector gestures;
+    // Where the pinch started, or a negative distance if there isn't one
+    private float pinchDistance = -1, pinchScale;
+
+    public ComicImageView(Context cxt) {
+        super(cxt);
+        init(cxt);
+    }
+    public ComicImageView(Context cxt, AttributeSet attrs) {
+        super(cxt, attrs);
+        init(cxt);
+    }
+    public ComicImageView(Context cxt, AttributeSet attrs, int defStyle) {
+        super(cxt, attrs, defStyle);
+        init(cxt);
+    }
+
+    private void init(Context cxt) {
+        setScaleType(ScaleType.MATRIX);
+        setFocusable(true);
+        gestures = new GestureDetector(cxt,
+                new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onSingleTapConfirmed(MotionEvent e) {
+                performClick();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                if (getScale() > fitScale * 1.01f)
+                    zoomTo(fitScale, e.getX(), e.getY());
+                else
+                    zoomTo(fitScale * 2, e.getX(), e.getY());
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2,
+                    float distanceX, float distanceY)
+            {
+                if (pinchDistance >= 0)
+                    return false;
+                matrix.postTranslate(-distanceX, -distanceY);
+                update();
+                return true;
+            }
+        });
+    }
+
+    public void setAllowPinchZoom(boolean b) {
+        allowPinchZoom = b;
+    }
+
+    /* Zoom buttons to show for a while whenever the image is touched, or
+     * null for none */
+    public void setZoomControls(View controls) {
+        removeCallbacks(hideZoomControls);
+        zoomControls = controls;
+    }
+
+    private void showZoomControls() {
+        if (zoomControls == null)
+            return;
+        zoomControls.setVisibility(View.VISIBLE);
+        removeCallbacks(hideZoomControls);
+        postDelayed(hideZoomControls, ZOOM_CONTROLS_TIMEOUT);
+    }
+
+    /* Where the bitmaps shown come from, or null if they belong to the view.
+     * The cache is told which one is on screen so it doesn't reuse it, and
+     * otherwise the view recycles each one it replaces. */
+    public void setBitmapCache(BitmapCache cache) {
+        this.cache = cache;
+    }
+
+    /* Replaces the image, recycling the old one unless it came from the
+     * BitmapCache, and calls onShown once the new one has been drawn. */
+    public void showImage(Bitmap bm, Runnable onShown) {
+        show(bm, null, onShown);
+    }
+
+    public void showTiledImage(TiledImage image, Runnable onShown) {
+        show(image.getPreview(), image, onShown);
+    }
+
+    private void show(Bitmap bm, TiledImage image, Runnable onShown) {
+        Bitmap old = bitmap;
+        TiledImage oldTiled = tiled;
+        bitmap = bm;
+        tiled = image;
+        this.onShown = onShown;
+        setImageBitmap(bm);
+        if (cache != null)
+            cache.pin(image == null ? bm : null);
+        if (oldTiled != null && oldTiled != image)
+            oldTiled.recycle();
+        else if (old != null && old != bm && cache == null)
+            old.recycle();
+        fit();
+    }
+
+    private int getImageWidth() {
+        return tiled != null ? tiled.getWidth() : bitmap.getWidth();
+    }
+
+    private int getImageHeight() {
+        return tiled != null ? tiled.getHeight() : bitmap.getHeight();
+    }
+
+    public void clearImage() {
+        showImage(null, null);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        fit();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (tiled != null)
+            tiled.draw(canvas, matrix, getScale(), this);
+        if (onShown != null && bitmap != null) {
+            Runnable r = onShown;
+            onShown = null;
+            r.run();
+        }
+    }
+
+    /* Fits the image to the width of the view, starting at the top */
+    private void fit() {
+        matrix.reset();
+        if (bitmap == null || getWidth() == 0 || getHeight() == 0) {
+            setImageMatrix(matrix);
+            return;
+        }
+        float w = getImageWidth(), h = getImageHeight();
+        fitScale = getWidth() / w;
+        minScale = Math.min(fitScale, getHeight() / h);
+        maxScale = Math.max(fitScale, 1) * MAX_ZOOM;
+        matrix.setScale(fitScale, fitScale);
+        update();
+    }
+
+    private float getScale() {
+        matrix.getValues(values);
+        return values[Matrix.MSCALE_X];
+    }
+
+    private void zoomTo(float scale, float x, float y) {
+        scale = Math.max(minScale, Math.min(maxScale, scale));
+        float factor = scale / getScale();
+        matrix.postScale(factor, factor, x, y);
+        update();
+    }
+
+    public void zoomIn() {
+        zoomTo(getScale() * ZOOM_STEP, getWidth() / 2f, getHeight() / 2f);
+    }
+
+    public void zoomOut() {
+        zoomTo(getScale() / ZOOM_STEP, getWidth() / 2f, getHeight() / 2f);
+    }
+
+    /* Keeps the image on screen: centred along an axis it's smaller than
+     * the view on, otherwise with no gap at either edge. */
+    private void update() {
+        if (bitmap != null) {
+            matrix.getValues(values);
+            float scale = values[Matrix.MSCALE_X];
+            float dx = constrain(values[Matrix.MTRANS_X],
+                    getImageWidth() * scale, getWidth());
+            float dy = constrain(values[Matrix.MTRANS_Y],
+                    getImageHeight() * scale, getHeight());
+            matrix.postTranslate(dx - values[Matrix.MTRANS_X],
+                    dy - values[Matrix.MTRANS_Y]);
+        }
+        drawMatrix.set(matrix);
+        if (tiled != null) {
+            drawMatrix.preScale(tiled.getWidth() / (float)bitmap.getWidth(),
+                    tiled.getHeight() / (float)bitmap.getHeight());
+        }
+        setImageMatrix(drawMatrix);
+    }
+
+    private static float constrain(float offset, float size, float viewSize) {
+        if (size <= viewSize)
+            return (viewSize - size) / 2;
+        return Math.max(viewSize - size, Math.min(0, offset));
+    }
+
+    /* MotionEvent only has more than one pointer from Android 2.0 */
+    private static class MultiTouch {
+        static int getPointerCount(MotionEvent evt) {
+            return evt.getPointerCount();
+        }
+        static float distance(MotionEvent evt) {
+            float x = evt.getX(0) - evt.getX(1), y = evt.getY(0) - evt.getY(1);
+            return (float)Math.sqrt(x * x + y * y);
+        }
+        static float midX(MotionEvent evt) {
+            return (evt.getX(0) + evt.getX(1)) / 2;
+        }
+        static float midY(MotionEvent evt) {
+            return (evt.getY(0) + evt.getY(1)) / 2;
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent evt) {
+        if (bitmap == null)
+            return super.onTouchEvent(evt);
+        showZoomControls();
+        if (allowPinchZoom && VersionHacks.getSdkInt() >= 5 && pinch(evt))
+            return true;
+        return gestures.onTouchEvent(evt);
+    }
+
+    /* Returns true if evt was part of a pinch */
+    private boolean pinch(MotionEvent evt) {
+        int action = evt.getAction() & MotionEvent.ACTION_MASK;
+        if (MultiTouch.getPointerCount(evt) < 2) {
+            if (pinchDistance < 0)
+                return false;
+            // The pinch is over, but don't treat the last finger as a drag
+            // or a tap
+            if (action == MotionEvent.ACTION_UP)
+                pinchDistance = -1;
+            return true;
+        }
+        switch (action) {
+        case MotionEvent.ACTION_POINTER_DOWN:
+            pinchDistance = MultiTouch.distance(evt);
+            pinchScale = getScale();
+            // So the first finger down isn't taken for a tap or a drag
+            MotionEvent cancel = MotionEvent.obtain(evt);
+            cancel.setAction(MotionEvent.ACTION_CANCEL);
+            gestures.onTouchEvent(cancel);
+            cancel.recycle();
+            break;
+        case MotionEvent.ACTION_MOVE:
+            if (pinchDistance > 10) {
+                zoomTo(pinchScale * MultiTouch.distance(evt) / pinchDistance,
+                        MultiTouch.midX(evt), MultiTouch.midY(evt));
+            }
+            break;
+        }
+        return true;
+    }
+
+    /* Do NOT call in a UI thread. Decodes the image in file, scaled down by
+     * a power of two as far as it needs to be to have at most maxPixels.
+     * Returns null if it can't be decoded. */
+    public static Bitmap decodeFile(File file, long maxPixels) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int sampleSize = getSampleSize(options.outWidth, options.outHeight,
+                maxPixels);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    /* The power of two to scale an image of the given size down by for it
+     * to have at most maxPixels */
+    public static int getSampleSize(int width, int height, long maxPixels) {
+        int sampleSize = 1;
+        while ((long)(width / sampleSize) * (height / sampleSize) > maxPixels)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /* The most pixels it's safe to decode an image to with this heap */
+    public static long getMaxPixels() {
+        // 4 bytes per pixel, and leave three quarters of the heap alone
+        return Runtime.getRuntime().maxMemory() / 4 / 4;
+    }
+}
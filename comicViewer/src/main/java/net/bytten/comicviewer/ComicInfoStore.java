@@ -0,0 +1,101 @@
+package net.bytten.comicviewer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/* Durable store of the raw comic metadata returned by a provider, keyed by
+ * numeric comic ID. Published comics don't change, so providers may serve
+ * them from here instead of going back to the network. */
+public class ComicInfoStore extends SQLiteOpenHelper
+    implements ComicDataStore
+{
+
+    public static final String DB_NAME    = "comicinfo";
+    public static final int    DB_VERSION = 1;
+
+    private static final int UNKNOWN = -2;
+    // The highest ID stored, once getMaxComicId has looked it up
+    private int maxId = UNKNOWN;
+
+    private ComicInfoStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE comics (id INTEGER PRIMARY KEY, " +
+                "data BLOB NOT NULL, fetched INTEGER NOT NULL);");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    protected static ComicInfoStore instance = null;
+    public static synchronized ComicInfoStore getInstance(Context cxt) {
+        if (instance == null) {
+            instance = new ComicInfoStore(cxt.getApplicationContext());
+        }
+        return instance;
+    }
+
+    @Override
+    public byte[] getComicData(int id) {
+        final Cursor results = getReadableDatabase().rawQuery(
+                "SELECT data FROM comics WHERE id = ?",
+                new String[]{Integer.toString(id)});
+        try {
+            if (!results.moveToFirst())
+                return null;
+            return results.getBlob(0);
+        } finally {
+            results.close();
+        }
+    }
+
+    /* Do NOT call in a UI thread. Returns the highest comic ID stored, or
+     * -1 if there are none. */
+    public int getMaxComicId() {
+        synchronized (this) {
+            if (maxId != UNKNOWN)
+                return maxId;
+        }
+        int max = -1;
+        final Cursor results = getReadableDatabase().rawQuery(
+                "SELECT MAX(id) FROM comics", new String[]{});
+        try {
+            if (results.moveToFirst() && !results.isNull(0))
+                max = results.getInt(0);
+        } finally {
+            results.close();
+        }
+        synchronized (this) {
+            // A comic may have been stored meanwhile
+            maxId = Math.max(maxId, max);
+            return maxId;
+        }
+    }
+
+    /* May be called in a UI thread. Returns the highest comic ID stored
+     * without going to the database, or -1 if getMaxComicId hasn't been
+     * called yet. */
+    public synchronized int peekMaxComicId() {
+        return maxId == UNKNOWN ? -1 : maxId;
+    }
+
+    @Override
+    public void putComicData(int id, byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put("id", id);
+        values.put("data", data);
+        values.put("fetched", System.currentTimeMillis());
+        getWritableDatabase().replace("comics", null, values);
+        synchronized (this) {
+            if (maxId != UNKNOWN)
+                maxId = Math.max(maxId, id);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.bytten.comicviewer;
+
+import android.net.Uri;
+
+/* Fetches the comics either side of the one being read as a PREFETCH task,
+ * so that paging through them doesn't have to wait for the network. */
+public class ComicPrefetcher {
+
+    /* The maximum number of comics kept hold of */
+    private static final int MAX_CACHED_INFO = 16;
+
+    private final IComicProvider provider;
+    private final ImageCache imageCache;
+
+    private final MemoryCache<String, IComicInfo> infoCache =
+        new MemoryCache<String, IComicInfo>(MAX_CACHED_INFO);
+
+    private TaskScheduler.Task task = null;
+
+    public ComicPrefetcher(IComicProvider provider, ImageCache imageCache) {
+        this.provider = provider;
+        this.imageCache = imageCache;
+    }
+
+    /* Starts fetching up to depth comics either side of comic, cancelling
+     * anything that was being prefetched before. */
+    public synchronized void prefetchAround(final IComicInfo comic,
+            final int depth)
+    {
+        cancel();
+        if (depth <= 0)
+            return;
+        task = TaskScheduler.getInstance().submit(TaskScheduler.PREFETCH,
+                new Runnable() {
+            public void run() {
+                try {
+                    prefetch(comic, depth);
+                } catch (InterruptedException e) {
+                    // Cancelled
+                }
+            }
+        });
+    }
+
+    /* Stops any prefetching in progress. Call this before loading a comic the
+     * user is waiting for, so it doesn't have to share the connection. */
+    public synchronized void cancel() {
+        if (task != null) {
+            task.cancel(true);
+            task = null;
+        }
+    }
+
+    /* Returns null if the comic at uri hasn't been prefetched. */
+    public IComicInfo getComicInfo(Uri uri) {
+        return infoCache.getCached(uri.toString());
+    }
+
+    /* Do NOT call in a UI thread. Returns the comic at uri, from those
+     * prefetched if possible. If it's already being fetched, waits for that
+     * rather than fetching it again. */
+    public IComicInfo fetchComicInfo(final Uri uri) throws Exception {
+        IComicInfo info = getComicInfo(uri);
+        if (info != null) {
+            Stats.COMIC_MEMORY_HIT.increment();
+            return info;
+        }
+        Stats.COMIC_MEMORY_MISS.increment();
+        return infoCache.get(uri.toString(), new SingleFlight.Call<IComicInfo>() {
+            public IComicInfo call() throws Exception {
+                return provider.fetchComicInfo(uri);
+            }
+        });
+    }
+
+    private void prefetch(IComicInfo comic, int depth)
+        throws InterruptedException
+    {
+        IComicInfo next = comic, prev = comic;
+        for (int i = 0; i < depth && (next != null || prev != null); ++i) {
+            if (next != null)
+                next = prefetch(next.getNextId());
+            if (prev != null)
+                prev = prefetch(prev.getPrevId());
+        }
+    }
+
+    /* Returns null if there is no such comic or it couldn't be fetched */
+    private IComicInfo prefetch(String id) throws InterruptedException {
+        Uri uri = provider.createComicUrl(id);
+        IComicInfo info = getComicInfo(uri);
+        try {
+            if (info == null) {
+                info = fetchComicInfo(uri);
+                Utility.allowInterrupt();
+                infoCache.put(uri.toString(), info);
+            }
+            Uri image = info.getImage();
+            if (image != null && !"".equals(image.toString()))
+                imageCache.get(image);
+            return info;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // Most likely gone past the first or final comic
+            return null;
+        }
+    }
+}
@@ -24,12 +24,9 @@ package net.bytten.comicviewer;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 
-import org.json.JSONException;
-
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -41,8 +38,8 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.InputType;
@@ -59,9 +56,6 @@ import android.view.ViewGroup;
 import android.view.Window;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
-import android.webkit.WebChromeClient;
-import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.FrameLayout;
@@ -69,6 +63,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
+import android.widget.ZoomControls;
 
 public abstract class ComicViewerActivity extends Activity {
 
@@ -82,14 +77,24 @@ public abstract class ComicViewerActivity extends Activity {
                 ViewGroup.LayoutParams.WRAP_CONTENT,
                 Gravity.BOTTOM);
 
-    private HackedWebView webview;
+    private ComicImageView imageView;
     private TextView title;
     protected IComicInfo comicInfo;
     protected IComicDefinition comicDef;
     protected IComicProvider provider;
+    protected ComicPrefetcher prefetcher;
+    protected ImageCache imageCache;
+    protected BitmapCache bitmapCache;
+    protected RandomComicPicker randomPicker;
+    // The comic or image being loaded, which any newer load replaces
+    private Utility.CancellableAsyncTaskWithProgressDialog<?, ?> currentLoad = null;
+    private Uri currentLoadUri = null;
+    /* Bumped whenever loadComic starts on another comic, so work started for
+     * one navigation can tell whether the user has moved on since */
+    private int navigation = 0;
     private EditText comicIdSel;
 
-    private View zoom = null;
+    private ZoomControls zoom = null;
 
     private ImageView bookmarkBtn = null;
 
@@ -105,6 +110,7 @@ public abstract class ComicViewerActivity extends Activity {
     static final int DIALOG_SHOW_ABOUT=1;
     static final int DIALOG_SEARCH_BY_TITLE=2;
     static final int DIALOG_FAILED=3;
+    static final int DIALOG_SYNC_CACHE_TOO_SMALL=4;
 
     protected abstract IComicDefinition makeComicDef();
     protected abstract Class<? extends ArchiveActivity> getArchiveActivityClass();
@@ -114,6 +120,23 @@ public abstract class ComicViewerActivity extends Activity {
     protected void resetContent() {
         comicDef = makeComicDef();
         provider = comicDef.getProvider();
+        final ComicInfoStore store = ComicInfoStore.getInstance(this);
+        provider.setComicInfoStore(store);
+        provider.setResponseStore(Utility.getResponseStore(this));
+        // So createRandomId can peek at it without going to the database
+        TaskScheduler.getInstance().submit(TaskScheduler.PREFETCH,
+                new Runnable() {
+            public void run() {
+                store.getMaxComicId();
+            }
+        });
+        if (prefetcher != null)
+            prefetcher.cancel();
+        imageCache = ImageCache.getInstance(this);
+        prefetcher = new ComicPrefetcher(provider, imageCache);
+        bitmapCache = BitmapCache.getInstance(this);
+        randomPicker = new RandomComicPicker(
+                PreferenceManager.getDefaultSharedPreferences(this));
         comicInfo = provider.createEmptyComicInfo();
         
         //Only hide the title bar if we're running an android less than Android 3.0
@@ -121,15 +144,26 @@ public abstract class ComicViewerActivity extends Activity {
             requestWindowFeature(Window.FEATURE_NO_TITLE);
 
         setContentView(R.layout.main);
-        webview = (HackedWebView)findViewById(R.id.viewer);
+        imageView = (ComicImageView)findViewById(R.id.viewer);
+        imageView.setBitmapCache(bitmapCache);
         title = (TextView)findViewById(R.id.title);
         comicIdSel = (EditText)findViewById(R.id.comicIdSel);
 
-        webview.requestFocus();
-        zoom = webview.getZoomControls();
+        imageView.requestFocus();
+        zoom = new ZoomControls(this);
+        zoom.setOnZoomInClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                imageView.zoomIn();
+            }
+        });
+        zoom.setOnZoomOutClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                imageView.zoomOut();
+            }
+        });
 
-        webview.setClickable(true);
-        webview.setOnClickListener(new OnClickListener() {
+        imageView.setClickable(true);
+        imageView.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
                 if (!"".equals(comicInfo.getAlt()))
                     showDialog(DIALOG_SHOW_HOVER_TEXT);
@@ -253,19 +287,83 @@ public abstract class ComicViewerActivity extends Activity {
         editor.commit();
     }
 
+    public boolean isRandomNoRepeat() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        return prefs.getBoolean("randomNoRepeat", false);
+    }
+
+    /* The latest comic is remembered so it can be shown straight away, then
+     * checked against the website at most this often. */
+    static final long LATEST_COMIC_TTL = 30*60*1000; // = 30 minutes
+
+    public String getLatestComic() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        return prefs.getString("latestComic", null);
+    }
+
+    public boolean isLatestComicStale() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        long checked = prefs.getLong("latestComicChecked", 0),
+             now = System.currentTimeMillis();
+        return now < checked || now - checked > LATEST_COMIC_TTL;
+    }
+
+    /* May be called from any thread */
+    public void setLatestComic(String id) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final SharedPreferences.Editor editor = prefs.edit();
+        editor.putString("latestComic", id);
+        editor.putLong("latestComicChecked", System.currentTimeMillis());
+        editor.commit();
+    }
+
+    public int getPrefetchDepth() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            return Integer.parseInt(prefs.getString("prefetchDepth", "1"));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    public long getImageCacheBytes() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            return Long.parseLong(prefs.getString("imageCacheSize", "20")) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            return ImageCache.DEFAULT_MAX_BYTES;
+        }
+    }
+
+    public int getSyncConcurrency() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            return Integer.parseInt(prefs.getString("syncConcurrency", "4"));
+        } catch (NumberFormatException e) {
+            return 4;
+        }
+    }
+
+    /* Images with more pixels than this are shown tiled, or 0 for never */
+    public long getTiledThreshold() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            return Long.parseLong(prefs.getString("tiledThreshold", "4")) * 1000000;
+        } catch (NumberFormatException e) {
+            return 4000000;
+        }
+    }
+
     public void setZoomControlEnable(boolean allowPinchZoom, boolean showZoomButtons) {
-        final ViewGroup zoomParent = (ViewGroup)webview.getParent().getParent();
+        final ViewGroup zoomParent = (ViewGroup)imageView.getParent().getParent();
         if (zoom.getParent() == zoomParent) zoomParent.removeView(zoom);
-        webview.getSettings().setBuiltInZoomControls(allowPinchZoom);
-        webview.setAllowZoomButtons(false);
-        webview.setAllowPinchZoom(allowPinchZoom);
+        imageView.setAllowPinchZoom(allowPinchZoom);
         if (showZoomButtons) {
-            if (allowPinchZoom) {
-                webview.setAllowZoomButtons(true);
-            } else {
-                zoomParent.addView(zoom, ZOOM_PARAMS);
-                zoom.setVisibility(View.GONE);
-            }
+            zoomParent.addView(zoom, ZOOM_PARAMS);
+            zoom.setVisibility(View.GONE);
+            imageView.setZoomControls(zoom);
+        } else {
+            imageView.setZoomControls(null);
         }
     }
 
@@ -339,6 +437,20 @@ public abstract class ComicViewerActivity extends Activity {
     public void onResume() {
         super.onResume();
         resetZoomControlEnable();
+        imageCache.setMaxBytes(getImageCacheBytes());
+    }
+
+    @Override
+    public void onDestroy() {
+        prefetcher.cancel();
+        cancelCurrentLoad();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        bitmapCache.clear();
     }
 
     @Override
@@ -402,6 +514,12 @@ public abstract class ComicViewerActivity extends Activity {
 		} else if (itemId == R.id.MENU_REFRESH) {
 			loadComic(createComicUri(comicInfo.getId()));
 			return true;
+		} else if (itemId == R.id.MENU_OFFLINE_SYNC) {
+			if (imageCache.getMaxBytes() < OfflineSync.REQUIRED_BYTES)
+			    showDialog(DIALOG_SYNC_CACHE_TOO_SMALL);
+			else
+			    syncOffline();
+			return true;
 		} else if (itemId == R.id.MENU_RANDOM) {
 			goToRandom();
 			return true;
@@ -414,6 +532,9 @@ public abstract class ComicViewerActivity extends Activity {
 		} else if (itemId == R.id.MENU_SETTINGS) {
 			showSettings();
 			return true;
+		} else if (itemId == R.id.MENU_DIAGNOSTICS) {
+			showDiagnostics();
+			return true;
 		} else if (itemId == R.id.MENU_GO_TO_FINAL) {
 			goToFinal();
 			return true;
@@ -498,6 +619,11 @@ public abstract class ComicViewerActivity extends Activity {
         startActivity(intent);
     }
 
+    public void showDiagnostics() {
+        Intent intent = new Intent(this, DiagnosticsActivity.class);
+        startActivity(intent);
+    }
+
     public void shareComicLink() {
         Intent intent = new Intent(Intent.ACTION_SEND, null);
         intent.setType("text/plain");
@@ -519,11 +645,12 @@ public abstract class ComicViewerActivity extends Activity {
             Throwable e;
 
             @Override
-            protected File doInBackground(Uri... params) {
+            protected File doInBackground(Uri param) {
                 try {
+                    // Other apps can't read our private cache, so share a copy
                     File file = new File(getApplicationContext().getExternalCacheDir(),
-                            comicDef.getComicTitleAbbrev()+"-"+params[0].getLastPathSegment());
-                    Utility.blockingSaveFile(file, params[0]);
+                            comicDef.getComicTitleAbbrev()+"-"+param.getLastPathSegment());
+                    Utility.blockingCopyFile(imageCache.get(param), file);
                     return file;
 
                 } catch (InterruptedException ex) {
@@ -550,13 +677,92 @@ public abstract class ComicViewerActivity extends Activity {
                         e = ex;
                     } catch (IOException ex) {
                         e = ex;
+                    } catch (InterruptedException ex) {
+                        return;
                     }
                 }
                 e.printStackTrace();
                 failed("Couldn't save attachment: "+e);
             }
 
-        }.start(this, "Saving image...", new Uri[]{comicInfo.getImage()});
+        }.start(this, "Saving image...", comicInfo.getImage());
+    }
+
+    /* Makes the image cache big enough to hold every comic */
+    public void growImageCacheForSync() {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final SharedPreferences.Editor editor = prefs.edit();
+        editor.putString("imageCacheSize", "1024");
+        editor.commit();
+        imageCache.setMaxBytes(getImageCacheBytes());
+    }
+
+    /* Don't call unless the image cache can hold every comic (see
+     * OfflineSync.REQUIRED_BYTES), or the sync will evict what it fetches
+     * and never finish */
+    public void syncOffline() {
+        final OfflineSync sync = new OfflineSync(provider, imageCache,
+                PreferenceManager.getDefaultSharedPreferences(this),
+                getSyncConcurrency());
+        final ProgressDialog pd = new ProgressDialog(this);
+        pd.setTitle(getStringAppName());
+        pd.setMessage("Downloading all comics...");
+        pd.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        pd.setCancelable(true);
+
+        /* Its own thread rather than a task, as it only waits for the SYNC
+         * tasks it submits and would otherwise hold up a pool thread */
+        final Thread worker = new Thread(new Runnable() {
+            public void run() {
+                Integer failures = null;
+                Throwable error = null;
+                try {
+                    failures = sync.run(new ComicSync.Listener() {
+                        public void onProgress(final int done, final int total,
+                                final double comicsPerSecond, final long imageBytes) {
+                            runOnUiThread(new Runnable() {
+                                public void run() {
+                                    pd.setMax(total);
+                                    pd.setProgress(done);
+                                    pd.setMessage(String.format(
+                                        "%.1f comics/s, %d MB of images",
+                                        comicsPerSecond, imageBytes / (1024 * 1024)));
+                                }
+                            });
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // Cancelled
+                } catch (Throwable e) {
+                    error = e;
+                }
+                final Integer result = failures;
+                final Throwable e = error;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        pd.dismiss();
+                        if (e != null) {
+                            e.printStackTrace();
+                            failed("Couldn't download comics: "+e);
+                        } else if (result == null) {
+                            toast("Stopped. Downloading again will carry on from here.");
+                        } else if (result > 0) {
+                            longToast(result+" comics couldn't be downloaded. "+
+                                "Downloading again will retry them.");
+                        } else {
+                            toast("All comics downloaded");
+                        }
+                    }
+                });
+            }
+        }, "OfflineSyncRunner");
+        pd.setOnCancelListener(new OnCancelListener() {
+            public void onCancel(DialogInterface dialog) {
+                worker.interrupt();
+            }
+        });
+        pd.show();
+        worker.start();
     }
 
     public void failed(final String reason) {
@@ -671,6 +877,23 @@ public abstract class ComicViewerActivity extends Activity {
 
             dialog = failedDialog;
             break;
+        case DIALOG_SYNC_CACHE_TOO_SMALL:
+            builder = new AlertDialog.Builder(this);
+            builder.setTitle("Download All");
+            builder.setIcon(android.R.drawable.ic_dialog_alert);
+            builder.setMessage("The image cache is too small to keep every "+
+                "comic, so the last ones downloaded would push out the "+
+                "first. Make it 1 GB and download them all?");
+            builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int which) {
+                    growImageCacheForSync();
+                    syncOffline();
+                }
+            });
+            builder.setNegativeButton(android.R.string.cancel, null);
+            dialog = builder.create();
+            builder = null;
+            break;
         default:
             dialog = null;
         }
@@ -713,7 +936,7 @@ public abstract class ComicViewerActivity extends Activity {
         super.onPrepareDialog(id, dialog);
     }
 
-    /* Comic-loading implementation using AsyncTasks and IComicProvider
+    /* Comic-loading implementation using TaskScheduler and IComicProvider
      * interface follows.
      *
      * goTo* methods must be called in UI thread
@@ -732,7 +955,55 @@ public abstract class ComicViewerActivity extends Activity {
         loadComic(createComicUri(comicInfo.getNextId()));
     }
     public void goToFinal() {
-        loadComic(provider.getFinalComicUrl());
+        final String latest = comicDef.idsAreNumbers() ? getLatestComic() : null;
+        if (latest == null) {
+            loadComic(provider.getFinalComicUrl());
+            return;
+        }
+        // Show the latest comic we know of (usually without the network) and
+        // check for a newer one afterwards
+        loadComic(createComicUri(latest));
+        if (isLatestComicStale())
+            revalidateLatest(latest);
+    }
+
+    private boolean revalidatingLatest = false;
+
+    /* Asks the website for the latest comic, and if it's newer than the one
+     * we showed and the user hasn't moved on, shows it instead. Call just
+     * after loading the one shown. */
+    private void revalidateLatest(final String shown) {
+        if (revalidatingLatest) return;
+        revalidatingLatest = true;
+        final int started = navigation;
+        TaskScheduler.getInstance().submit(TaskScheduler.PREFETCH,
+                new Runnable() {
+            public void run() {
+                String latest = null;
+                try {
+                    latest = fetchComicInfo(provider.getFinalComicUrl()).getId();
+                } catch (Exception e) {
+                    // Keep showing what we have; try again next time
+                    e.printStackTrace();
+                }
+                final String newer = latest;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        revalidatingLatest = false;
+                        if (newer == null || isFinishing())
+                            return;
+                        try {
+                            if (Integer.parseInt(newer) <= Integer.parseInt(shown))
+                                return;
+                        } catch (NumberFormatException e) {
+                            return;
+                        }
+                        if (started == navigation)
+                            loadComic(createComicUri(newer));
+                    }
+                });
+            }
+        });
     }
 
     public Uri createComicUri(String id) {
@@ -740,13 +1011,18 @@ public abstract class ComicViewerActivity extends Activity {
     }
 
     public void goToRandom() {
+        String id = createRandomId();
+        if (id != null) {
+            loadComic(createComicUri(id));
+            return;
+        }
         /* Can't just choose a random number and go to the comic, because if
          * the user cancelled the comic loading at start, we won't know how
          * many comics there are! */
         new Utility.CancellableAsyncTaskWithProgressDialog<Object, Uri>(getStringAppName()) {
 
             @Override
-            protected Uri doInBackground(Object... params) {
+            protected Uri doInBackground(Object param) {
                 try {
                     return fetchRandomUri();
                 } catch (Exception e) {
@@ -764,7 +1040,35 @@ public abstract class ComicViewerActivity extends Activity {
                     toast("Failed to get random comic");
             }
 
-       }.start(this, "Randomizing...", new Object[]{null});
+       }.start(this, "Randomizing...", null);
+    }
+
+    /* Picks a comic from the range of IDs we already know about, or returns
+     * null if we don't know the range yet. Doesn't touch the database, so
+     * it can be called in the UI thread. */
+    public String createRandomId() {
+        if (!comicDef.idsAreNumbers())
+            return null;
+        int first, last;
+        try {
+            first = Integer.parseInt(provider.getFirstId());
+            last = ComicInfoStore.getInstance(this).peekMaxComicId();
+            String latest = getLatestComic();
+            if (latest != null)
+                last = Math.max(last, Integer.parseInt(latest));
+            String newest = ArchiveData.getArchive(comicDef).peekNewestId();
+            if (newest != null)
+                last = Math.max(last, Integer.parseInt(newest));
+            String current = comicInfo.getId();
+            if (current != null && current.length() > 0)
+                last = Math.max(last, Integer.parseInt(current));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (last <= first)
+            return null;
+        return Integer.toString(randomPicker.pick(first, last,
+                provider.getMissingIds(), isRandomNoRepeat()));
     }
 
     public Uri fetchRandomUri() throws Exception {
@@ -780,29 +1084,33 @@ public abstract class ComicViewerActivity extends Activity {
     
     public void explain() {
         final IComicInfo comic = comicInfo;
-        new AsyncTask<Object, Integer, Integer>() {
-
-            @Override
-            protected Integer doInBackground(Object... params) {
+        TaskScheduler.getInstance().submit(TaskScheduler.INTERACTIVE,
+                new Runnable() {
+            public void run() {
+                Integer status = null;
                 try {
                     URL url = new URL(provider.getExplainUrl(comic).toString());
-                    HttpURLConnection http = (HttpURLConnection)url.openConnection();
-                    return http.getResponseCode();
+                    HttpClient.Response response = Utility.getHttpClient().open(url);
+                    try {
+                        status = response.getStatus();
+                    } finally {
+                        response.close();
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
-                    return null;
+                } catch (InterruptedException e) {
+                    // Cancelled
                 }
+                final Integer result = status;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (result == null || result != 200) {
+                            toast("This comic has no user-supplied explanation.");
+                        }
+                    }
+                });
             }
-
-            @Override
-            protected void onPostExecute(Integer result) {
-                super.onPostExecute(result);
-                if (result == null || result != 200) {
-                    toast("This comic has no user-supplied explanation.");
-                }
-                
-            }
-        }.execute(new Object[]{});
+        });
         
         Intent browser = new Intent();
         browser.setAction(Intent.ACTION_VIEW);
@@ -811,12 +1119,44 @@ public abstract class ComicViewerActivity extends Activity {
         startActivity(browser);
     }
 
+    /* Returns true if uri is already being loaded. Otherwise, cancels
+     * whatever is being loaded, as the user has moved on from it. */
+    private boolean supersedeCurrentLoad(Uri uri) {
+        if (currentLoad != null && !currentLoad.isCancelled() &&
+                uri.equals(currentLoadUri))
+            return true;
+        cancelCurrentLoad();
+        return false;
+    }
+
+    private void cancelCurrentLoad() {
+        if (currentLoad != null)
+            currentLoad.cancel(true);
+        currentLoad = null;
+        currentLoadUri = null;
+    }
+
+    private void startCurrentLoad(Uri uri,
+            Utility.CancellableAsyncTaskWithProgressDialog<Object, ?> load,
+            String pdText)
+    {
+        currentLoad = load;
+        currentLoadUri = uri;
+        load.start(this, pdText, null);
+    }
+
     public void loadComic(final Uri uri) {
+        if (supersedeCurrentLoad(uri))
+            return;
+        ++navigation;
+        // Don't make the user wait on comics they may never look at
+        prefetcher.cancel();
+        final long start = Stats.now();
 
-        new Utility.CancellableAsyncTaskWithProgressDialog<Object, ComicInfoOrError>(getStringAppName()) {
+        startCurrentLoad(uri, new Utility.CancellableAsyncTaskWithProgressDialog<Object, ComicInfoOrError>(getStringAppName()) {
 
             @Override
-            protected ComicInfoOrError doInBackground(Object... params) {
+            protected ComicInfoOrError doInBackground(Object param) {
                 try {
                     return new ComicInfoOrError(fetchComicInfo(uri));
                 } catch (Throwable e) {
@@ -827,11 +1167,15 @@ public abstract class ComicViewerActivity extends Activity {
             @Override
             protected void onPostExecute(ComicInfoOrError result) {
                 super.onPostExecute(result);
+                if (currentLoad != this)
+                    return;
+                currentLoad = null;
                 if (result.comicInfo != null) {
                     comicInfo = result.comicInfo;
                     title.setText(comicInfo.getTitle());
                     comicIdSel.setText(comicInfo.getId());
                     refreshBookmarkBtn();
+                    Stats.COMIC_LOAD.stop(start);
                     setLastReadComic(comicInfo.getId());
 
                     loadComicImage(comicInfo.getImage());
@@ -842,6 +1186,8 @@ public abstract class ComicViewerActivity extends Activity {
                     }
                 } else {
                     result.e.printStackTrace();
+                    if (!(result.e instanceof InterruptedException))
+                        Stats.COMIC_LOAD_ERROR.increment();
                     /* Syntaxhack pattern match against type of result.e: */
                     try {
                         throw result.e;
@@ -851,60 +1197,137 @@ public abstract class ComicViewerActivity extends Activity {
                         // Comic doesn't exist. Probably went beyond the final
                         // or before the first.
                         toast("Comic doesn't exist");
+                    } catch (ComicParseException e) {
+                        failed("Data returned from website didn't match expected format");
                     } catch (IOException e) {
                         failed("IO error: "+e);
                     } catch (InterruptedException e) {
                         // Do nothing. Loading was cancelled.
-                    } catch (JSONException e) {
-                        failed("Data returned from website didn't match expected format");
                     } catch (Throwable e) {
                         failed(e.toString());
                     }
                 }
             }
 
-        }.start(this, "Loading comic...", new Object[]{null});
+        }, "Loading comic...");
     }
 
     public IComicInfo fetchComicInfo(Uri uri) throws Exception {
-        IComicInfo ci = provider.fetchComicInfo(uri);
+        IComicInfo ci = prefetcher.fetchComicInfo(uri);
+        if (comicDef.idsAreNumbers() && uri.equals(provider.getFinalComicUrl()))
+            setLatestComic(ci.getId());
+        long start = Stats.now();
         ci.setBookmarked(BookmarksHelper.isBookmarked(this, ci.getId()));
+        Stats.COMIC_BOOKMARK.stop(start);
         return ci;
     }
 
-    public void loadComicImage(Uri uri) {
-        webview.clearView();
-        final ProgressDialog pd = ProgressDialog.show(
-                this, getStringAppName(),
-                "Loading comic image...", false, true,
-                new OnCancelListener() {
-                    public void onCancel(DialogInterface dialog) {
-                        webview.stopLoading();
-                        webview.requestFocus();
-                    }
-                });
-        pd.setProgress(0);
-        webview.setWebViewClient(new WebViewClient() {
+    public void loadComicImage(final Uri uri) {
+        if ("".equals(uri.toString())) {
+            imageView.clearImage();
+            failed("Couldn't identify image in post");
+            return;
+        }
+
+        if (supersedeCurrentLoad(uri))
+            return;
+        Bitmap decoded = bitmapCache.get(uri.toString());
+        if (decoded != null) {
+            showComicImage(comicInfo, decoded, null, Stats.now());
+            return;
+        }
+        File cached = imageCache.getCached(uri);
+        if (cached != null) {
+            displayComicImage(uri, cached);
+            return;
+        }
+
+        startCurrentLoad(uri, new Utility.CancellableAsyncTaskWithProgressDialog<Object, File>(getStringAppName()) {
+
             @Override
-            public void onPageFinished(WebView view, String url) {
-                super.onPageFinished(view, url);
-                pd.dismiss();
-                webview.requestFocus();
+            protected File doInBackground(Object param) {
+                try {
+                    return imageCache.get(uri);
+                } catch (InterruptedException e) {
+                    return null;
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    return null;
+                }
             }
-        });
-        webview.setWebChromeClient(new WebChromeClient() {
+
             @Override
-            public void onProgressChanged(WebView view, int newProgress) {
-                super.onProgressChanged(view, newProgress);
-                pd.setProgress(newProgress * 100);
+            protected void onPostExecute(File result) {
+                super.onPostExecute(result);
+                if (currentLoad != this)
+                    return;
+                currentLoad = null;
+                if (result != null) {
+                    displayComicImage(uri, result);
+                } else {
+                    failed("Couldn't download the comic's image");
+                }
+            }
+
+        }, "Loading comic image...");
+    }
+
+    /* Decodes the image in the background, then shows it if the user is
+     * still on the same comic. Images too big to decode whole, or bigger
+     * than the tiledThreshold preference, are shown tiled where that's
+     * possible, and otherwise scaled down. Other images are kept in the
+     * BitmapCache, even if the user has moved on, as they may come back. */
+    private void displayComicImage(final Uri uri, final File file) {
+        final IComicInfo comic = comicInfo;
+        final long start = Stats.now();
+        final long threshold = getTiledThreshold();
+        TaskScheduler.getInstance().submit(TaskScheduler.INTERACTIVE,
+                new Runnable() {
+            public void run() {
+                long maxPixels = ComicImageView.getMaxPixels();
+                if (threshold > 0)
+                    maxPixels = Math.min(maxPixels, threshold);
+                final TiledImage tiled =
+                    VersionHacks.getSdkInt() >= TiledImage.MIN_SDK &&
+                    TiledImage.countPixels(file) > maxPixels ?
+                        TiledImage.open(file) : null;
+                final Bitmap bitmap = tiled != null ? null :
+                    bitmapCache.decode(file, ComicImageView.getMaxPixels());
+                Stats.IMAGE_DECODE.stop(start);
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        if (bitmap != null)
+                            bitmapCache.put(uri.toString(), bitmap);
+                        if (comic != comicInfo) {
+                            if (tiled != null) tiled.recycle();
+                        } else if (tiled == null && bitmap == null) {
+                            failed("Couldn't decode the comic's image");
+                        } else {
+                            showComicImage(comic, bitmap, tiled, start);
+                        }
+                    }
+                });
             }
         });
-        if ("".equals(uri.toString())) {
-            failed("Couldn't identify image in post");
-            webview.loadUrl("about:blank");
-        } else {
-            webview.loadUrl(uri.toString());
-        }
+    }
+
+    private void showComicImage(final IComicInfo comic, Bitmap bitmap,
+            TiledImage tiled, final long start)
+    {
+        Runnable onShown = new Runnable() {
+            public void run() {
+                Stats.IMAGE_RENDER.stop(start);
+                imageView.requestFocus();
+                // Only now that the user can see this comic, get the ones
+                // they are likely to want next
+                if (comic == comicInfo)
+                    prefetcher.prefetchAround(comic, getPrefetchDepth());
+            }
+        };
+        if (tiled != null)
+            imageView.showTiledImage(tiled, onShown);
+        else
+            imageView.showImage(bitmap, onShown);
     }
 
     @Override
@@ -0,0 +1,76 @@
+package net.bytten.comicviewer;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/* Shows what Stats has recorded about loading comics, and lets it be shared
+ * as text so it can be attached to a bug report. */
+public class DiagnosticsActivity extends Activity {
+
+    private TextView text;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+        text = (TextView)findViewById(R.id.diagnosticsText);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        text.setText(getSnapshot());
+    }
+
+    private String getSnapshot() {
+        ImageCache imageCache = ImageCache.getInstance(this);
+        BitmapCache bitmapCache = BitmapCache.getInstance(this);
+        return "Android API " + VersionHacks.getSdkInt() + "\n" +
+            "Image cache: " + imageCache.getTotalBytes() / 1024 + " of " +
+            imageCache.getMaxBytes() / 1024 + " KB\n" +
+            "Bitmap cache: " + bitmapCache.getTotalBytes() / 1024 + " of " +
+            bitmapCache.getMaxBytes() / 1024 + " KB\n\n" +
+            Stats.dump();
+    }
+
+    private void share() {
+        Intent intent = new Intent(Intent.ACTION_SEND, null);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getTitle() + " diagnostics");
+        intent.putExtra(Intent.EXTRA_TEXT, getSnapshot());
+        startActivity(Intent.createChooser(intent, "Share diagnostics..."));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int itemId = item.getItemId();
+        if (itemId == R.id.diagnostics_refresh) {
+            refresh();
+            return true;
+        } else if (itemId == R.id.diagnostics_share) {
+            share();
+            return true;
+        } else if (itemId == R.id.diagnostics_reset) {
+            Stats.reset();
+            refresh();
+            return true;
+        }
+        return false;
+    }
+}
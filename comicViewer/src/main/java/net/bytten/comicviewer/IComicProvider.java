@@ -1,8 +1,5 @@
 package net.bytten.comicviewer;
 
-import java.util.List;
-
-import net.bytten.comicviewer.ArchiveData.ArchiveItem;
 import android.net.Uri;
 
 public interface IComicProvider {
@@ -12,9 +9,24 @@ public interface IComicProvider {
     public String getFirstId();
     public Uri getFinalComicUrl();
     public Uri fetchRandomComicUrl() throws Exception;
+    // For comics whose IDs are numbers, return the IDs between the first and
+    // latest comics that don't belong to a comic
+    public int[] getMissingIds();
     public IComicInfo fetchComicInfo(Uri url) throws Exception;
     public IComicInfo createEmptyComicInfo();
-    public List<ArchiveItem> fetchArchive() throws Exception;
+    // Archive titles shouldn't include the comic ID, which is shown with them
+    public CompactArchive fetchArchive() throws Exception;
+
+    // Return only the archive items newer than newestId, newest first, or
+    // null if they can't be worked out without a full fetchArchive()
+    public CompactArchive fetchArchiveUpdate(String newestId) throws Exception;
+
+    // Where fetchComicInfo may keep and look up comics it has already seen
+    public void setComicInfoStore(ComicInfoStore store);
+
+    // Where fetchArchive and the final comic may keep what they last fetched,
+    // to ask the server for them again only if they have changed
+    public void setResponseStore(ResponseStore store);
     
     // Return null if the comic has no explanation
     public Uri getExplainUrl(IComicInfo comic);
@@ -0,0 +1,39 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+
+/* Disk cache of comic images shared by everything that displays, shares or
+ * prefetches them. See DiskCache. */
+public class ImageCache extends DiskCache {
+
+    public static final long DEFAULT_MAX_BYTES = 20*1024*1024; // = 20 MB
+
+    private static ImageCache instance = null;
+    public static synchronized ImageCache getInstance(Context cxt) {
+        if (instance == null) {
+            instance = new ImageCache(new File(
+                    cxt.getApplicationContext().getCacheDir(), "images"),
+                    DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    public ImageCache(File dir, long maxBytes) {
+        super(dir, maxBytes, Utility.getHttpClient());
+    }
+
+    /* Returns null if the image at uri isn't in the cache. */
+    public File getCached(Uri uri) {
+        return getCached(uri.toString());
+    }
+
+    /* Do NOT call in a UI thread. Downloads the image at uri into the cache
+     * if it isn't already there. */
+    public File get(Uri uri) throws IOException, InterruptedException {
+        return get(uri.toString());
+    }
+}
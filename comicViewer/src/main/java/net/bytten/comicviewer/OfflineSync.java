@@ -0,0 +1,64 @@
+package net.bytten.comicviewer;
+
+import java.util.concurrent.Executor;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+/* Runs a ComicSync of every comic from the provider into the image cache,
+ * with its workers as SYNC tasks and its checkpoint kept in prefs. */
+public class OfflineSync {
+
+    private static final String CHECKPOINT_KEY = "offlineSyncedThrough";
+
+    /* About how much space every comic's image takes. With a smaller image
+     * cache, the last images downloaded push out the first. */
+    public static final long REQUIRED_BYTES = 500L*1024*1024; // = 500 MB
+
+    private final IComicProvider provider;
+    private final ImageCache imageCache;
+    private final SharedPreferences prefs;
+    private final int concurrency;
+
+    /* prefs is where the checkpoint is kept */
+    public OfflineSync(IComicProvider provider, ImageCache imageCache,
+            SharedPreferences prefs, int concurrency)
+    {
+        this.provider = provider;
+        this.imageCache = imageCache;
+        this.prefs = prefs;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /* Do NOT call in a UI thread, or in a TaskScheduler task. See
+     * ComicSync.run. */
+    public int run(ComicSync.Listener listener) throws Exception {
+        final TaskScheduler scheduler = TaskScheduler.getInstance();
+        scheduler.setConcurrency(TaskScheduler.SYNC, concurrency);
+        ComicSync sync = new ComicSync(new ComicSync.Source() {
+            public int fetchLatestId() throws Exception {
+                return Integer.parseInt(provider.fetchComicInfo(
+                        provider.getFinalComicUrl()).getId());
+            }
+            public String fetchImageUrl(int id) throws Exception {
+                Uri image = provider.fetchComicInfo(provider.createComicUrl(
+                        Integer.toString(id))).getImage();
+                return image == null ? null : image.toString();
+            }
+        }, imageCache, new ComicSync.Checkpoint() {
+            public int load() {
+                return prefs.getInt(CHECKPOINT_KEY, 0);
+            }
+            public void save(int syncedThrough) {
+                SharedPreferences.Editor editor = prefs.edit();
+                editor.putInt(CHECKPOINT_KEY, syncedThrough);
+                editor.commit();
+            }
+        }, new Executor() {
+            public void execute(Runnable worker) {
+                scheduler.submit(TaskScheduler.SYNC, worker);
+            }
+        }, concurrency);
+        return sync.run(Integer.parseInt(provider.getFirstId()), listener);
+    }
+}
@@ -0,0 +1,95 @@
+package net.bytten.comicviewer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.SharedPreferences;
+
+/* Picks random comic IDs locally from a known range, rather than asking the
+ * comic's website for one.
+ *
+ * In no-repeat mode it works through a shuffled cycle of the whole range
+ * before showing any comic again. The cycle is stored as the seed of the
+ * shuffle and how far through it we are, so it survives restarts. Comics
+ * published part way through a cycle join the next one. */
+public class RandomComicPicker {
+
+    private static final String SEED_KEY = "randomCycleSeed",
+                                FIRST_KEY = "randomCycleFirst",
+                                LAST_KEY = "randomCycleLast",
+                                POSITION_KEY = "randomCyclePosition";
+
+    private final SharedPreferences prefs;
+    private final Random random = new Random();
+
+    public RandomComicPicker(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /* Returns an ID in [first, last] that isn't one of missing */
+    public synchronized int pick(int first, int last, int[] missing,
+            boolean noRepeat)
+    {
+        int[] candidates = candidates(first, last, missing);
+        if (candidates.length == 0)
+            return first;
+        if (!noRepeat)
+            return candidates[random.nextInt(candidates.length)];
+
+        int cycleFirst = prefs.getInt(FIRST_KEY, -1),
+            cycleLast = prefs.getInt(LAST_KEY, -1),
+            position = prefs.getInt(POSITION_KEY, 0);
+        long seed = prefs.getLong(SEED_KEY, 0);
+        if (cycleFirst != first || cycleLast > last || cycleLast < first) {
+            // No cycle yet, or the range has changed under it
+            cycleFirst = first;
+            cycleLast = last;
+            position = Integer.MAX_VALUE;
+        }
+        int[] cycle = cycleLast == last ? candidates
+                : candidates(cycleFirst, cycleLast, missing);
+        if (position >= cycle.length) {
+            // Start a new cycle, including any comics added since the last
+            cycle = candidates;
+            cycleLast = last;
+            seed = random.nextLong();
+            position = 0;
+        }
+
+        shuffle(cycle, seed);
+        int id = cycle[position];
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(SEED_KEY, seed);
+        editor.putInt(FIRST_KEY, cycleFirst);
+        editor.putInt(LAST_KEY, cycleLast);
+        editor.putInt(POSITION_KEY, position + 1);
+        editor.commit();
+        return id;
+    }
+
+    private static int[] candidates(int first, int last, int[] missing) {
+        int[] sortedMissing = missing.clone();
+        Arrays.sort(sortedMissing);
+        int[] ids = new int[Math.max(0, last - first + 1)];
+        int count = 0;
+        for (int id = first; id <= last; ++id) {
+            if (Arrays.binarySearch(sortedMissing, id) < 0)
+                ids[count++] = id;
+        }
+        int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /* Fisher-Yates shuffle that always gives the same order for a seed */
+    private static void shuffle(int[] ids, long seed) {
+        Random r = new Random(seed);
+        for (int i = ids.length - 1; i > 0; --i) {
+            int j = r.nextInt(i + 1);
+            int t = ids[i];
+            ids[i] = ids[j];
+            ids[j] = t;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package net.bytten.comicviewer;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/* Runs all the app's background work in a few bounded pools of threads, one
+ * per priority class:
+ *
+ * INTERACTIVE - work the user is waiting for, such as loading a comic
+ * PREFETCH    - work the user may want soon, such as prefetching
+ * SYNC        - bulk work, such as downloading every comic
+ *
+ * PREFETCH and SYNC tasks don't start while an INTERACTIVE one is running,
+ * and ones already running give way to it whenever they call
+ * Utility.allowInterrupt. */
+public class TaskScheduler {
+
+    public static final int INTERACTIVE = 0, PREFETCH = 1, SYNC = 2;
+
+    private static final String[] NAMES = {
+        "Interactive", "Prefetch", "Sync"
+    };
+    private static final int[] POOL_SIZES = { 3, 2, 4 };
+    private static final int[] THREAD_PRIORITIES = {
+        Process.THREAD_PRIORITY_DEFAULT,
+        Process.THREAD_PRIORITY_BACKGROUND,
+        Process.THREAD_PRIORITY_LOWEST
+    };
+
+    /* A submitted task, which may be cancelled. */
+    public static class Task implements Runnable {
+        private final int priority;
+        private final Runnable body;
+        private Thread thread = null;
+        private boolean started = false, cancelled = false;
+
+        private Task(int priority, Runnable body) {
+            this.priority = priority;
+            this.body = body;
+        }
+
+        /* Stops the task. If it's running and mayInterrupt is true, its
+         * thread is interrupted, so any I/O it's doing stops at the next
+         * Utility.allowInterrupt. Returns true if the task hadn't started,
+         * in which case it never will. */
+        public synchronized boolean cancel(boolean mayInterrupt) {
+            cancelled = true;
+            if (thread != null && mayInterrupt)
+                thread.interrupt();
+            return !started;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void run() {
+            synchronized (this) {
+                started = true;
+                if (cancelled) return;
+                thread = Thread.currentThread();
+            }
+            TaskScheduler scheduler = getInstance();
+            boolean counted = false;
+            try {
+                if (priority == INTERACTIVE) {
+                    scheduler.interactiveStarted();
+                    counted = true;
+                } else {
+                    scheduler.awaitNoInteractive();
+                }
+                body.run();
+            } catch (InterruptedException e) {
+                // Cancelled while waiting for its turn
+            } catch (RuntimeException e) {
+                // A bug in the task, but it mustn't take the pool thread too
+                e.printStackTrace();
+            } finally {
+                if (counted)
+                    scheduler.interactiveFinished();
+                synchronized (this) {
+                    thread = null;
+                }
+                // Don't let a late cancel() leak into the pool's next task
+                Thread.interrupted();
+            }
+        }
+    }
+
+    protected static TaskScheduler instance = null;
+    public static synchronized TaskScheduler getInstance() {
+        if (instance == null) {
+            instance = new TaskScheduler();
+        }
+        return instance;
+    }
+
+    private final ThreadPoolExecutor[] pools =
+        new ThreadPoolExecutor[NAMES.length];
+    private final Object interactiveLock = new Object();
+    private volatile int interactiveRunning = 0;
+
+    // The priority class of each of our worker threads
+    private static final ThreadLocal<Integer> workerPriority =
+        new ThreadLocal<Integer>();
+
+    private TaskScheduler() {
+        for (int i = 0; i < pools.length; ++i) {
+            pools[i] = new ThreadPoolExecutor(POOL_SIZES[i], POOL_SIZES[i],
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), makeThreadFactory(i));
+        }
+    }
+
+    private static ThreadFactory makeThreadFactory(final int priority) {
+        return new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(THREAD_PRIORITIES[priority]);
+                        workerPriority.set(priority);
+                        r.run();
+                    }
+                }, NAMES[priority] + "Task-" + (++count));
+                if (priority != INTERACTIVE)
+                    t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        };
+    }
+
+    /* Queues body to run in the pool for priority. */
+    public Task submit(int priority, Runnable body) {
+        Task task = new Task(priority, body);
+        pools[priority].execute(task);
+        return task;
+    }
+
+    /* Changes how many tasks of a priority class may run at once. */
+    public void setConcurrency(int priority, int threads) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor pool = pools[priority];
+        synchronized (pool) {
+            // The core size may never be more than the maximum
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    static {
+        Interrupts.setYielder(new Interrupts.Yielder() {
+            public void yieldIfBusy() {
+                yieldToInteractive();
+            }
+        });
+    }
+
+    /* Called from Interrupts.check. Lets an INTERACTIVE task have the
+     * CPU if the current thread is running a lower priority one. Doesn't
+     * block, as the caller may be holding a connection the INTERACTIVE task
+     * needs. */
+    static void yieldToInteractive() {
+        if (instance == null || instance.interactiveRunning == 0)
+            return;
+        Integer priority = workerPriority.get();
+        if (priority != null && priority != INTERACTIVE)
+            Thread.yield();
+    }
+
+    private void interactiveStarted() {
+        synchronized (interactiveLock) {
+            ++interactiveRunning;
+        }
+    }
+
+    private void interactiveFinished() {
+        synchronized (interactiveLock) {
+            if (--interactiveRunning == 0)
+                interactiveLock.notifyAll();
+        }
+    }
+
+    private void awaitNoInteractive() throws InterruptedException {
+        synchronized (interactiveLock) {
+            while (interactiveRunning > 0)
+                interactiveLock.wait();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package net.bytten.comicviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.view.View;
+
+/* An image too big to decode whole. It's drawn as a low resolution preview
+ * with tiles over it, each decoded from just its own region of the file and
+ * only in as much detail as the current zoom shows. Only tiles in view are
+ * decoded, and only about enough of them to cover the view are kept, so the
+ * memory it needs depends on the size of the screen rather than on the size
+ * of the image.
+ *
+ * Regions can only be decoded from Android 2.3.3, so check MIN_SDK before
+ * using this. */
+public class TiledImage {
+
+    public static final int MIN_SDK = 10;
+
+    /* Width and height in pixels of a decoded tile */
+    private static final int TILE_SIZE = 256;
+    /* The most pixels a preview may have */
+    private static final long PREVIEW_PIXELS = 1024 * 1024;
+
+    /* BitmapRegionDecoder doesn't exist before Android 2.3.3, so only touch
+     * it in here. The decoder is passed around as an Object. */
+    private static class Regions {
+        static Object open(File file) throws IOException {
+            return BitmapRegionDecoder.newInstance(file.getPath(), false);
+        }
+        static int getWidth(Object decoder) {
+            return ((BitmapRegionDecoder)decoder).getWidth();
+        }
+        static int getHeight(Object decoder) {
+            return ((BitmapRegionDecoder)decoder).getHeight();
+        }
+        static Bitmap decode(Object decoder, Rect region, int sampleSize) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            return ((BitmapRegionDecoder)decoder).decodeRegion(region,
+                    options);
+        }
+        static void recycle(Object decoder) {
+            ((BitmapRegionDecoder)decoder).recycle();
+        }
+    }
+
+    private final Object decoder;
+    private final int width, height;
+    private final Bitmap preview;
+
+    // Decoded tiles by key(), least recently drawn first. UI thread only.
+    private final LinkedHashMap<Long, Bitmap> tiles =
+        new LinkedHashMap<Long, Bitmap>(32, 0.75f, true);
+    private int maxTiles = 0;
+    // Tiles in view that haven't been decoded, in the order to decode them
+    private final LinkedHashSet<Long> pending = new LinkedHashSet<Long>();
+    private boolean decoding = false, recycled = false;
+    private View view = null;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix inverse = new Matrix();
+    private final RectF visible = new RectF(), dst = new RectF();
+
+    private TiledImage(Object decoder, Bitmap preview) {
+        this.decoder = decoder;
+        this.width = Regions.getWidth(decoder);
+        this.height = Regions.getHeight(decoder);
+        this.preview = preview;
+    }
+
+    /* Do NOT call in a UI thread. Opens the image in file and decodes its
+     * preview. Returns null if it can't be decoded. */
+    public static TiledImage open(File file) {
+        Object decoder;
+        try {
+            decoder = Regions.open(file);
+        } catch (IOException e) {
+            return null;
+        }
+        Bitmap preview = ComicImageView.decodeFile(file, PREVIEW_PIXELS);
+        if (preview == null) {
+            Regions.recycle(decoder);
+            return null;
+        }
+        return new TiledImage(decoder, preview);
+    }
+
+    /* The number of pixels in the image in file, or 0 if it can't tell */
+    public static long countPixels(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return 0;
+        return (long)options.outWidth * options.outHeight;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Bitmap getPreview() {
+        return preview;
+    }
+
+    /* Draws whichever tiles are in view, with matrix mapping the image to
+     * view at the given scale, and starts decoding the ones
+     * that are missing. Anything missing is left showing the preview, so
+     * draw that first. Call in the UI thread. */
+    public void draw(Canvas canvas, Matrix matrix, float scale, View view) {
+        if (recycled || !matrix.invert(inverse))
+            return;
+        this.view = view;
+
+        // The coarsest sample size that still has a pixel for every pixel
+        // of the view. If the preview is that detailed, it's all we need.
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1)
+            sampleSize *= 2;
+        if (preview.getWidth() * sampleSize >= width) {
+            request(new ArrayList<Long>());
+            return;
+        }
+
+        // Tiles shrink to no less than half their size on screen, so this
+        // many always cover the view, with a row and column to spare
+        int across = view.getWidth() * 2 / TILE_SIZE + 2,
+            down = view.getHeight() * 2 / TILE_SIZE + 2;
+        maxTiles = (across + 1) * (down + 1);
+
+        visible.set(0, 0, view.getWidth(), view.getHeight());
+        inverse.mapRect(visible);
+        int tileSize = TILE_SIZE * sampleSize;
+        int left = Math.max(0, (int)visible.left / tileSize),
+            top = Math.max(0, (int)visible.top / tileSize),
+            right = Math.min((width - 1) / tileSize,
+                    (int)visible.right / tileSize),
+            bottom = Math.min((height - 1) / tileSize,
+                    (int)visible.bottom / tileSize);
+
+        List<Long> missing = new ArrayList<Long>();
+        canvas.save();
+        canvas.concat(matrix);
+        for (int row = top; row <= bottom; ++row) {
+            for (int col = left; col <= right; ++col) {
+                long key = key(sampleSize, row, col);
+                Bitmap tile = tiles.get(key);
+                if (tile == null) {
+                    missing.add(key);
+                    continue;
+                }
+                dst.set(col * tileSize, row * tileSize,
+                        Math.min(width, (col + 1) * tileSize),
+                        Math.min(height, (row + 1) * tileSize));
+                canvas.drawBitmap(tile, null, dst, paint);
+            }
+        }
+        canvas.restore();
+        request(missing);
+    }
+
+    private static long key(int sampleSize, int row, int col) {
+        return ((long)sampleSize << 48) | ((long)row << 24) | col;
+    }
+
+    /* Replaces whatever was waiting to be decoded with keys, since anything
+     * no longer in view isn't worth decoding. */
+    private void request(List<Long> keys) {
+        synchronized (pending) {
+            pending.clear();
+            pending.addAll(keys);
+            if (decoding || pending.isEmpty())
+                return;
+            decoding = true;
+        }
+        TaskScheduler.getInstance().submit(TaskScheduler.INTERACTIVE,
+                new Runnable() {
+            public void run() {
+                decodePending();
+            }
+        });
+    }
+
+    /* Decodes tiles until there are none left to decode */
+    private void decodePending() {
+        while (true) {
+            long key;
+            synchronized (pending) {
+                Iterator<Long> it = pending.iterator();
+                if (recycled || !it.hasNext()) {
+                    decoding = false;
+                    if (recycled)
+                        Regions.recycle(decoder);
+                    return;
+                }
+                key = it.next();
+                it.remove();
+            }
+
+            int sampleSize = (int)(key >>> 48),
+                row = (int)(key >>> 24) & 0xffffff,
+                col = (int)key & 0xffffff,
+                tileSize = TILE_SIZE * sampleSize;
+            Rect region = new Rect(col * tileSize, row * tileSize,
+                    Math.min(width, (col + 1) * tileSize),
+                    Math.min(height, (row + 1) * tileSize));
+            long start = Stats.now();
+            Bitmap tile;
+            try {
+                tile = Regions.decode(decoder, region, sampleSize);
+            } catch (OutOfMemoryError e) {
+                tile = null;
+            }
+            Stats.IMAGE_TILE.stop(start);
+            if (tile != null)
+                added(key, tile);
+        }
+    }
+
+    /* Hands a decoded tile to the UI thread, which keeps it and redraws */
+    private void added(final long key, final Bitmap tile) {
+        final View v = view;
+        v.post(new Runnable() {
+            public void run() {
+                if (recycled) {
+                    tile.recycle();
+                    return;
+                }
+                Bitmap old = tiles.put(key, tile);
+                if (old != null)
+                    old.recycle();
+                evict();
+                v.invalidate();
+            }
+        });
+    }
+
+    /* Drops the least recently drawn tiles until there are few enough */
+    private void evict() {
+        Iterator<Map.Entry<Long, Bitmap>> it = tiles.entrySet().iterator();
+        while (tiles.size() > maxTiles && it.hasNext()) {
+            Bitmap tile = it.next().getValue();
+            it.remove();
+            tile.recycle();
+        }
+    }
+
+    /* Frees the tiles, the preview and the decoder. Call in the UI thread
+     * once it's no longer drawn. */
+    public void recycle() {
+        synchronized (pending) {
+            if (recycled)
+                return;
+            recycled = true;
+            pending.clear();
+            // Otherwise the decoding thread does this once it's done
+            if (!decoding)
+                Regions.recycle(decoder);
+        }
+        for (Bitmap tile: tiles.values())
+            tile.recycle();
+        tiles.clear();
+        preview.recycle();
+    }
+}
@@ -1,77 +1,84 @@
 package net.bytten.comicviewer;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
 
 public class Utility {
 
-    public static URLConnection openRedirectableConnection(URL url) throws IOException {
-        return openRedirectableConnection(url, 0);
+    private static boolean httpConfigured = false;
+
+    /* The HttpClient set up for this version of Android */
+    public static synchronized HttpClient getHttpClient() {
+        if (!httpConfigured) {
+            if (VersionHacks.getSdkInt() < 8)
+                HttpClient.disableConnectionPooling();
+            httpConfigured = true;
+        }
+        return HttpClient.getInstance();
     }
 
-    private static URLConnection openRedirectableConnection(URL url, int redirects) throws IOException {
-        URLConnection conn = url.openConnection();
-        if (conn instanceof HttpURLConnection) {
-            HttpURLConnection http = (HttpURLConnection)conn;
-            int status = http.getResponseCode();
-            if (status == -1) {
-                throw new IOException("A certificate failure occurred. Make sure your device is fully up to date."); // In practice, that seems to be when this HTTP failure occurs
-            }
-            if (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER) {
-                if (redirects > 2)
-                    throw new IOException("Too many HTTP redirects");
-                String location = http.getHeaderField("Location");
-                if (location == null)
-                    throw new IOException("Invalid redirect");
-                return openRedirectableConnection(new URL(location), redirects + 1);
-            }
+    private static ResponseStore responseStore = null;
+
+    /* Kept with the cache, since losing it only costs a full download */
+    public static synchronized ResponseStore getResponseStore(Context cxt) {
+        if (responseStore == null) {
+            responseStore = new ResponseStore(new File(
+                    cxt.getApplicationContext().getCacheDir(), "responses"));
         }
-        return conn;
+        return responseStore;
     }
 
-    public static String blockingReadUri(Uri uri) throws IOException,
+    public static byte[] blockingReadBytes(Uri uri) throws IOException,
         InterruptedException
     {
-        InputStream is = openRedirectableConnection(new URL(uri.toString())).getInputStream();
+        HttpClient.Response response = getHttpClient().open(
+                new URL(uri.toString()));
         try {
-            StringBuffer sb = new StringBuffer();
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
-                sb.append('\n');
+            InputStream is = response.getInputStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count = -1;
+            while ((count = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
                 Utility.allowInterrupt();
             }
-            return sb.toString();
+            return bytes.toByteArray();
         } finally {
-            is.close();
+            response.close();
         }
     }
 
+    /* Call regularly in background work. Throws if the task has been
+     * cancelled, and gives way to work the user is waiting for. */
     public static void allowInterrupt() throws InterruptedException {
-        if (Thread.interrupted())
-            throw new InterruptedException();
+        Interrupts.check();
     }
 
+    /* Runs doInBackground as an INTERACTIVE task on the TaskScheduler while
+     * showing a ProgressDialog, then onPostExecute (or onCancelled if the
+     * dialog was cancelled) in the UI thread. start must be called in the
+     * UI thread. Takes a single Params rather than varargs, which can't be
+     * generic without heap pollution warnings. */
     public static abstract class CancellableAsyncTaskWithProgressDialog<Params, Result>
-        extends AsyncTask<Params, Integer, Result>
     {
         private ProgressDialog pd;
+        private Handler handler;
+        private TaskScheduler.Task task;
+        private volatile boolean cancelled = false;
         
         private String title;
         
@@ -79,7 +86,9 @@ public class Utility {
             this.title = title;
         }
 
-        public void start(Context cxt, String pdText, Params... params) {
+        protected abstract Result doInBackground(Params param);
+
+        public void start(Context cxt, String pdText, final Params param) {
             pd = ProgressDialog.show(cxt,
                     title, pdText, true, true,
                     new OnCancelListener() {
@@ -87,51 +96,110 @@ public class Utility {
                     cancel(true);
                 }
             });
-            execute(params);
+            handler = new Handler();
+            task = TaskScheduler.getInstance().submit(TaskScheduler.INTERACTIVE,
+                    new Runnable() {
+                public void run() {
+                    Result result = null;
+                    try {
+                        if (!isCancelled())
+                            result = doInBackground(param);
+                    } finally {
+                        finish(result);
+                    }
+                }
+            });
+        }
+
+        private void finish(final Result result) {
+            handler.post(new Runnable() {
+                public void run() {
+                    if (isCancelled())
+                        onCancelled(result);
+                    else
+                        onPostExecute(result);
+                }
+            });
         }
 
-        @Override
-        protected void onProgressUpdate(Integer... progress) {
-            pd.setProgress(progress[0]);
+        /* Must be called in the UI thread */
+        public final boolean cancel(boolean mayInterruptIfRunning) {
+            if (cancelled) return false;
+            cancelled = true;
+            if (task != null && task.cancel(mayInterruptIfRunning)) {
+                // It never ran, so nothing else will tidy up
+                finish(null);
+            }
+            return true;
+        }
+
+        public final boolean isCancelled() {
+            return cancelled;
         }
 
-        @Override
         protected void onCancelled(Result result) {
             pd.dismiss();
         }
 
-        @Override
         protected void onPostExecute(Result result) {
             pd.dismiss();
         }
     }
 
+    /* Do NOT call in a UI thread. file is only replaced once the download
+     * is complete; see HttpClient.saveTo. */
     public static void blockingSaveFile(File file, Uri uri) throws IOException,
         InterruptedException
     {
+        blockingSaveFile(file, uri, null);
+    }
+
+    public static void blockingSaveFile(File file, Uri uri,
+            HttpClient.ProgressListener progress)
+        throws IOException, InterruptedException
+    {
+        getHttpClient().saveTo(new URL(uri.toString()), file, null, progress);
+    }
+
+    public static void blockingCopyFile(File from, File to) throws IOException,
+        InterruptedException
+    {
+        FileInputStream fis = null;
         FileOutputStream fos = null;
-        InputStream is = null;
         try {
-            fos = new FileOutputStream(file);
-            is = openRedirectableConnection(new URL(uri.toString())).getInputStream();
-
-            byte[] buffer = new byte[512];
-            int count = -1;
-            while ((count = is.read(buffer)) != -1) {
-                fos.write(buffer, 0, count);
+            fis = new FileInputStream(from);
+            fos = new FileOutputStream(to);
+            FileChannel in = fis.getChannel(), out = fos.getChannel();
+            // Let the kernel copy it, a piece at a time so it can be
+            // interrupted
+            long size = in.size(), position = 0;
+            while (position < size) {
+                long n = in.transferTo(position,
+                        Math.min(HttpClient.BUFFER_SIZE, size - position), out);
+                if (n <= 0)
+                    throw new IOException("Couldn't copy " + from);
+                position += n;
                 Utility.allowInterrupt();
             }
         } finally {
             try {
                 if (fos != null) fos.close();
-                if (is != null) is.close();
+                if (fis != null) fis.close();
             } catch (IOException ex) {}
         }
     }
 
-    public static String getContentType(Uri uri) throws MalformedURLException, IOException {
-        URLConnection conn = new URL(uri.toString()).openConnection();
-        return conn.getContentType();
+    /* Do NOT call in a UI thread unless uri is a local file. */
+    public static String getContentType(Uri uri) throws MalformedURLException,
+        IOException, InterruptedException
+    {
+        HttpClient.Response response = getHttpClient().open(
+                new URL(uri.toString()));
+        try {
+            return response.getContentType();
+        } finally {
+            response.close();
+        }
     }
     
 }
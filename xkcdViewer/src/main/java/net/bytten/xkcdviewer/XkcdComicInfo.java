@@ -7,6 +7,8 @@ public class XkcdComicInfo implements IComicInfo {
 
     public Uri img, link;
     public int num;
+    /* Publication date as yyyymmdd */
+    public int date;
     public String title = "", alt = "";
     public boolean bookmarked;
 
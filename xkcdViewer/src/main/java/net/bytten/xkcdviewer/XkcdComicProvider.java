@@ -1,37 +1,37 @@
 package net.bytten.xkcdviewer;
 
-import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import net.bytten.comicviewer.ComicInfoStore;
+import net.bytten.comicviewer.CompactArchive;
 import net.bytten.comicviewer.IComicInfo;
 import net.bytten.comicviewer.IComicProvider;
+import net.bytten.comicviewer.ResponseStore;
 import net.bytten.comicviewer.Utility;
-import net.bytten.comicviewer.ArchiveData.ArchiveItem;
-
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import android.net.Uri;
-import android.util.Log;
 
+/* Adapts XkcdClient, which does the fetching and decoding, to the app. */
 public class XkcdComicProvider implements IComicProvider {
 
-    private static final Pattern archiveItemPattern = Pattern.compile(
-            // group(1): comic number;   group(2): date;   group(3): title
-            "\\s*<a href=\"/(\\d+)/\" title=\"(\\d+-\\d+-\\d+)\">([^<]+)</a><br/>\\s*");
-    private static final String ARCHIVE_URL = "http://www.xkcd.com/archive/";
-    
+    public static final String XKCD_URL = XkcdClient.XKCD_URL;
+
     private XkcdComicDefinition def;
-    
+    private final XkcdClient client;
+
     public XkcdComicProvider(XkcdComicDefinition def) {
         this.def = def;
+        this.client = new XkcdClient(Utility.getHttpClient());
+    }
+
+    /* baseUrl replaces http://xkcd.com in every comic data and archive URL,
+     * e.g. to point at a local server standing in for it. */
+    public XkcdComicProvider(XkcdComicDefinition def, String baseUrl) {
+        this.def = def;
+        this.client = new XkcdClient(baseUrl, baseUrl+"/random/comic",
+                Utility.getHttpClient());
     }
-    
+
     @Override
     public Uri comicDataUrlForUrl(Uri url) {
         Matcher m = XkcdComicDefinition.comicUrlPattern
@@ -43,55 +43,58 @@ public class XkcdComicProvider implements IComicProvider {
 
     @Override
     public Uri createComicUrl(String comicId) {
-        return Uri.parse("http://xkcd.com/"+comicId+"/info.0.json");
+        return Uri.parse(client.getBaseUrl()+"/"+comicId+"/info.0.json");
+    }
+
+    @Override
+    public void setComicInfoStore(ComicInfoStore store) {
+        client.setComicDataStore(store);
+    }
+
+    @Override
+    public void setResponseStore(ResponseStore store) {
+        client.setResponseStore(store);
     }
 
     @Override
-    public IComicInfo fetchComicInfo(Uri url) throws Exception {
-        // Uses xkcd's JSON interface
-        //      (http://xkcd.com/json.html) 
-        String text = Utility.blockingReadUri(url);
-        JSONObject obj = (JSONObject)new JSONTokener(text).nextValue();
-        Log.d("json", obj.names().toString());
+    public XkcdComicInfo fetchComicInfo(Uri url) throws Exception {
+        return toComicInfo(client.fetchComic(url.toString()));
+    }
+
+    private static XkcdComicInfo toComicInfo(XkcdComic comic) {
         XkcdComicInfo data = new XkcdComicInfo();
-        data.img = Uri.parse(obj.getString("img"));
-        byte [] encodedAlt = obj.getString("alt").getBytes("ISO-8859-1");
-        data.alt = new String(encodedAlt, "UTF-8");
-        data.num = obj.getInt("num");
-        data.title = obj.getString("title");
-        if (obj.has("link") && obj.getString("link").length() > 0) {
-            data.link = Uri.parse(obj.getString("link"));
+        data.img = Uri.parse(comic.img);
+        data.alt = comic.alt;
+        data.num = comic.num;
+        data.title = comic.title;
+        data.date = comic.date;
+        if (comic.link.length() > 0) {
+            data.link = Uri.parse(comic.link);
         }
         return data;
     }
 
     @Override
     public Uri fetchRandomComicUrl() throws Exception {
-        HttpURLConnection http = (HttpURLConnection) new URL("https",
-                "dynamic.xkcd.com", "/random/comic").openConnection();
-        http.setInstanceFollowRedirects(false);
-        String redirect = http.getHeaderField("Location");
+        String redirect = client.fetchRandomComicLocation();
         if (redirect != null) {
             Uri loc = Uri.parse(redirect);
             if (def.isComicUrl(loc)) {
                 return comicDataUrlForUrl(loc);
             }
         }
-        Log.w("headers", Integer.toString(http.getResponseCode()));
-        Map<String, List<String>> headers = http.getHeaderFields();
-        for (String key: headers.keySet()) {
-            if (key == null) continue;
-            Log.w("headers", key);
-            for (String val: headers.get(key)) {
-                Log.w("headers", "    "+val);
-            }
-        }
         return null;
     }
 
+    @Override
+    public int[] getMissingIds() {
+        // There is deliberately no comic #404
+        return new int[]{404};
+    }
+
     @Override
     public Uri getFinalComicUrl() {
-        return Uri.parse("http://xkcd.com/info.0.json");
+        return Uri.parse(client.latestComicDataUrl());
     }
 
     @Override
@@ -105,29 +108,21 @@ public class XkcdComicProvider implements IComicProvider {
     }
 
     @Override
-    public List<ArchiveItem> fetchArchive() throws Exception {
-        List<ArchiveItem> archiveItems = new ArrayList<ArchiveItem>();
-        URL url = new URL(ARCHIVE_URL);
-        BufferedReader br = new BufferedReader(new InputStreamReader(Utility.openRedirectableConnection(url).getInputStream()));
+    public CompactArchive fetchArchive() throws Exception {
+        return client.fetchArchive();
+    }
 
+    @Override
+    public CompactArchive fetchArchiveUpdate(String newestId)
+        throws Exception
+    {
+        int newest;
         try {
-            String line;
-            while ((line = br.readLine()) != null) {
-                Matcher m = archiveItemPattern.matcher(line);
-                while (m.find()) {
-                    ArchiveItem item = new ArchiveItem();
-                    item.comicId = m.group(1);
-                    item.title = item.comicId + " - " + m.group(3);
-                    archiveItems.add(item);
-                }
-
-                Utility.allowInterrupt();
-            }
-
-        } finally {
-            br.close();
+            newest = Integer.parseInt(newestId);
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return archiveItems;
+        return client.fetchArchiveUpdate(newest);
     }
 
     @Override